@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Allows to cancel a running lookup, either on request or because its deadline
+ * has passed. Cancelling aborts the http request which is currently in flight
+ * so that its connection is freed immediately. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class Cancellation {
+
+	private boolean isCancelled = false;
+	private boolean isTimedOut = false;
+	private HttpUriRequest currentRequest = null;
+
+	/**
+	 * Cancels the lookup and aborts the request in flight, if there is one.
+	 */
+	void cancel() {
+		abort(false);
+	}
+
+	/**
+	 * Cancels the lookup because its deadline has passed and aborts the
+	 * request in flight, if there is one.
+	 */
+	void timeOut() {
+		abort(true);
+	}
+
+	private void abort(boolean becauseOfTimeout) {
+		HttpUriRequest requestToAbort;
+		synchronized (this) {
+			if (isCancelled) {
+				return;
+			}
+			isCancelled = true;
+			isTimedOut = becauseOfTimeout;
+			requestToAbort = currentRequest;
+			currentRequest = null;
+			notifyAll();
+		}
+		if (requestToAbort != null) {
+			requestToAbort.abort();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the lookup was cancelled for any reason.
+	 */
+	synchronized boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/**
+	 * @return <code>true</code> if the lookup was cancelled because its
+	 *         deadline has passed.
+	 */
+	synchronized boolean isTimedOut() {
+		return isTimedOut;
+	}
+
+	/**
+	 * Registers the request which is about to be sent. If the lookup was
+	 * cancelled already the request is aborted right away.
+	 *
+	 * @param request
+	 *            The request or <code>null</code> if no request is in flight
+	 *            anymore.
+	 */
+	void setCurrentRequest(HttpUriRequest request) {
+		synchronized (this) {
+			if (!isCancelled) {
+				currentRequest = request;
+				return;
+			}
+		}
+		if (request != null) {
+			request.abort();
+		}
+	}
+
+	/**
+	 * Waits until the time has passed or the lookup was cancelled, whatever
+	 * comes first.
+	 *
+	 * @return <code>true</code> if the lookup was cancelled.
+	 * @throws InterruptedException
+	 *             If the waiting thread was interrupted.
+	 */
+	synchronized boolean await(long nanos) throws InterruptedException {
+		long end = System.nanoTime() + nanos;
+		long remaining = nanos;
+		while (!isCancelled && remaining > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			remaining = end - System.nanoTime();
+		}
+		return isCancelled;
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending requests to hosts which keep failing. Every host has a
+ * circuit which is closed as long as requests succeed. It opens when at
+ * least half of the recent requests failed or were too slow, then requests
+ * are rejected right away. After a backoff a single probe request is let
+ * through: if it succeeds the circuit closes again, otherwise it stays open
+ * and the backoff doubles. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class CircuitBreaker {
+
+	/** The number of recent requests the failure rate is computed from. */
+	static final int WINDOW_SIZE = 10;
+
+	/** The circuit doesn't open before this many requests were recorded. */
+	static final int MIN_REQUESTS = 5;
+
+	/** Responses taking longer than this count as failures. */
+	static final long SLOW_RESPONSE_MILLIS = 5000;
+
+	/** A probe which did not report back for this long is replaced. */
+	static final long PROBE_TIMEOUT_MILLIS = 60 * 1000;
+
+	/**
+	 * Closed circuits are dropped when more hosts than this have one, their
+	 * few failures are forgotten.
+	 */
+	static final int MAX_CIRCUITS = 500;
+
+	/** Delivered by {@link #allowRequest(String)} if the circuit is open. */
+	static final long REJECTED = -1;
+
+	/** Delivered by {@link #allowRequest(String)} for ordinary requests. */
+	static final long NO_PROBE = 0;
+
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+	/**
+	 * @param initialBackoffMillis
+	 *            How long a circuit stays open before the first probe.
+	 * @param maxBackoffMillis
+	 *            The longest time a circuit stays open between two probes.
+	 * @throws IllegalArgumentException
+	 *             If initialBackoffMillis is smaller than 1 or larger than
+	 *             maxBackoffMillis.
+	 */
+	CircuitBreaker(long initialBackoffMillis, long maxBackoffMillis) {
+		if (initialBackoffMillis < 1
+				|| initialBackoffMillis > maxBackoffMillis) {
+			throw new IllegalArgumentException(
+					"initialBackoffMillis must be between 1 and "
+							+ "maxBackoffMillis");
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Decides whether a request to the host may be sent. Every allowed
+	 * request must be followed by a call to
+	 * {@link #recordSuccess(String, long)},
+	 * {@link #recordFailure(String, long)} or
+	 * {@link #recordAbandoned(String, long)} with the delivered ticket.
+	 *
+	 * @param host
+	 *            The host key as delivered by
+	 *            {@link HostLimiter#getHostKey(android.net.Uri)}.
+	 * @return {@link #REJECTED} if the circuit of the host is open,
+	 *         {@link #NO_PROBE} for an ordinary request or the ticket of the
+	 *         probe otherwise. Only the outcome of the probe decides about an
+	 *         open circuit.
+	 */
+	long allowRequest(String host) {
+		Circuit circuit = circuits.get(host);
+		return circuit == null ? NO_PROBE : circuit.allowRequest();
+	}
+
+	/**
+	 * @return <code>true</code> if requests to the host are rejected at the
+	 *         moment. Does not let a probe through.
+	 */
+	boolean isRejecting(String host) {
+		Circuit circuit = circuits.get(host);
+		return circuit != null && circuit.isRejecting();
+	}
+
+	/**
+	 * Records a request which was answered in time.
+	 */
+	void recordSuccess(String host, long ticket) {
+		Circuit circuit = circuits.get(host);
+		if (circuit != null) {
+			circuit.record(ticket, true, initialBackoffMillis,
+					maxBackoffMillis);
+			if (circuit.isDiscarded()) {
+				circuits.remove(host, circuit);
+			}
+		}
+	}
+
+	/**
+	 * Records a request which failed, timed out or was answered too slowly.
+	 */
+	void recordFailure(String host, long ticket) {
+		while (!getCircuit(host).record(ticket, false, initialBackoffMillis,
+				maxBackoffMillis)) {
+			// The circuit was discarded meanwhile, it is replaced.
+		}
+	}
+
+	/**
+	 * Records a request which was cancelled before it had an outcome. If it
+	 * was the probe, the next request becomes the probe.
+	 */
+	void recordAbandoned(String host, long ticket) {
+		Circuit circuit = circuits.get(host);
+		if (circuit != null) {
+			circuit.abandon(ticket);
+		}
+	}
+
+	/**
+	 * Closes all circuits.
+	 */
+	void reset() {
+		circuits.clear();
+	}
+
+	/**
+	 * @return The number of hosts which have a circuit at the moment.
+	 */
+	int getCircuitCount() {
+		return circuits.size();
+	}
+
+	private Circuit getCircuit(String host) {
+		Circuit circuit = circuits.get(host);
+		if (circuit == null || circuit.isDiscarded()) {
+			if (circuit != null) {
+				circuits.remove(host, circuit);
+			}
+			if (circuits.size() >= MAX_CIRCUITS) {
+				discardClosedCircuits();
+			}
+			Circuit newCircuit = new Circuit();
+			circuit = circuits.putIfAbsent(host, newCircuit);
+			if (circuit == null) {
+				circuit = newCircuit;
+			}
+		}
+		return circuit;
+	}
+
+	private void discardClosedCircuits() {
+		Iterator<Circuit> iterator = circuits.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().discardIfClosed()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * The state of a single host. Hosts without recent failures have no
+	 * circuit: a closed circuit is discarded as soon as its window holds no
+	 * failure.
+	 */
+	private static final class Circuit {
+
+		/** The outcomes of the recent requests, true for failures. */
+		private final boolean[] window = new boolean[WINDOW_SIZE];
+		private int next = 0;
+		private int recorded = 0;
+		private int failures = 0;
+
+		private boolean isOpen = false;
+		private long backoffMillis = 0;
+		private long openUntil = 0;
+		private long probeStartedAt = -1;
+		private long probeTicket = NO_PROBE;
+		private boolean isDiscarded = false;
+
+		synchronized long allowRequest() {
+			if (!isOpen) {
+				return NO_PROBE;
+			}
+			long now = SystemClock.elapsedRealtime();
+			if (isRejecting(now)) {
+				return REJECTED;
+			}
+			probeStartedAt = now;
+			probeTicket++;
+			return probeTicket;
+		}
+
+		synchronized boolean isRejecting() {
+			return isOpen && isRejecting(SystemClock.elapsedRealtime());
+		}
+
+		/**
+		 * Must only be called while the circuit is open. A probe which did
+		 * not report back in time no longer blocks the next one.
+		 */
+		private boolean isRejecting(long now) {
+			boolean isProbeRunning = probeStartedAt != -1
+					&& now - probeStartedAt < PROBE_TIMEOUT_MILLIS;
+			return now < openUntil || isProbeRunning;
+		}
+
+		/**
+		 * @return <code>false</code> if the circuit was discarded and the
+		 *         outcome was not recorded.
+		 */
+		synchronized boolean record(long ticket, boolean isSuccess,
+				long initialBackoffMillis, long maxBackoffMillis) {
+			if (isDiscarded) {
+				return false;
+			}
+			if (isOpen) {
+				if (!isProbe(ticket)) {
+					// A request sent before the circuit opened or a probe
+					// which was replaced.
+					return true;
+				}
+				probeStartedAt = -1;
+				if (isSuccess) {
+					isOpen = false;
+					isDiscarded = true;
+				} else {
+					backoffMillis = Math.min(2 * backoffMillis,
+							maxBackoffMillis);
+					openUntil = SystemClock.elapsedRealtime() + backoffMillis;
+				}
+				return true;
+			}
+
+			if (recorded == WINDOW_SIZE && window[next]) {
+				failures--;
+			}
+			window[next] = !isSuccess;
+			if (!isSuccess) {
+				failures++;
+			}
+			next = (next + 1) % WINDOW_SIZE;
+			recorded = Math.min(recorded + 1, WINDOW_SIZE);
+
+			if (recorded >= MIN_REQUESTS && 2 * failures >= recorded) {
+				isOpen = true;
+				backoffMillis = initialBackoffMillis;
+				openUntil = SystemClock.elapsedRealtime() + backoffMillis;
+			} else if (failures == 0) {
+				isDiscarded = true;
+			}
+			return true;
+		}
+
+		synchronized boolean isDiscarded() {
+			return isDiscarded;
+		}
+
+		/**
+		 * @return <code>true</code> if the circuit was closed and is
+		 *         discarded now.
+		 */
+		synchronized boolean discardIfClosed() {
+			if (!isOpen) {
+				isDiscarded = true;
+			}
+			return isDiscarded;
+		}
+
+		synchronized void abandon(long ticket) {
+			if (isProbe(ticket)) {
+				probeStartedAt = -1;
+			}
+		}
+
+		private boolean isProbe(long ticket) {
+			return probeStartedAt != -1 && ticket == probeTicket;
+		}
+
+	}
+}
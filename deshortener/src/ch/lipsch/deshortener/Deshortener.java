@@ -19,16 +19,44 @@
 package ch.lipsch.deshortener;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
 import android.net.Uri;
@@ -43,75 +71,962 @@ public final class Deshortener {
 
 	/**
 	 * Contains all the possible result states of a deshortening action.
+	 * {@link #HOST_UNAVAILABLE} is delivered without sending a request when
+	 * the shortener failed repeatedly and is left alone for a while.
 	 */
 	public enum ResultType {
-		SUCCESS, NETWORK_ERROR, SHOWS_PREVIEW, CANNOT_DESHORTEN
+		SUCCESS, NETWORK_ERROR, SHOWS_PREVIEW, CANNOT_DESHORTEN, CANCELLED, TIMEOUT,
+		HOST_UNAVAILABLE
 	};
 
-	/** Contains all hosts which show a preview. */
-	private static final Set<String> PREVIEW_HOSTS = new HashSet<String>();
+	/**
+	 * Is notified about results of lookups running in the background.
+	 */
+	public interface Callback {
+		/**
+		 * Is called when a lookup has finished.
+		 *
+		 * @param uri
+		 *            The uri which was deshortened.
+		 * @param result
+		 *            The result of the lookup.
+		 */
+		void onResult(Uri uri, Result result);
+	}
+
+	/**
+	 * Delivers resolutions stored by the application, e.g. in a database.
+	 */
+	public interface ResolutionStore {
+		/**
+		 * Is called from a background thread before a lookup is started.
+		 *
+		 * @param shortUri
+		 *            The uri to deshorten.
+		 * @return The stored final uri or <code>null</code> if there is none.
+		 */
+		Uri getResolvedUri(Uri shortUri);
+	}
+
+	/**
+	 * The request methods used to deshorten an uri.
+	 */
+	public enum Strategy {
+		/** Only GET requests are sent. */
+		GET,
+		/**
+		 * HEAD requests are sent, GET requests only for hosts rejecting HEAD
+		 * requests or shorteners which do not redirect a HEAD request.
+		 */
+		HEAD_THEN_GET
+	};
+
+	/** The default for {@link #setMaxRedirects(int)}. */
+	public static final int DEFAULT_MAX_REDIRECTS = 10;
+
+	/** The default connect timeout of {@link #setTimeouts(int, int, long)}. */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+	/** The default socket timeout of {@link #setTimeouts(int, int, long)}. */
+	public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 10000;
+
+	/** The default deadline of {@link #setTimeouts(int, int, long)}. */
+	public static final long DEFAULT_DEADLINE_MILLIS = 15000;
+
+	/** The parallelism of {@link #deshortenAll(Collection)}. */
+	public static final int DEFAULT_BATCH_PARALLELISM = 8;
+
+	/** The maximum parallelism of batch lookups. */
+	public static final int MAX_BATCH_PARALLELISM = 16;
+
+	/** The maximum number of concurrent batch lookups per shortener. */
+	public static final int MAX_CONCURRENT_PER_HOST = SharedHttpClient.MAX_CONNECTIONS_PER_HOST;
 
 	private static final String LOG_TAG = Deshortener.class.getName();
 
-	static {
-		fillPreviewHosts();
+	/**
+	 * Response bodies up to this size are read to keep the connection alive.
+	 * Larger ones are cut off by closing the connection.
+	 */
+	private static final long MAX_CONSUMED_BODY_BYTES = 8 * 1024;
+
+	/** At most this much of a page is read looking for a redirect. */
+	private static final int MAX_SCANNED_BODY_BYTES = 16 * 1024;
+
+	/** Contains all hosts which answered a HEAD request with 405 or 501. */
+	private static final Map<String, Boolean> HEAD_REJECTING_HOSTS = new ConcurrentHashMap<String, Boolean>();
+
+	private static final ResolutionCache CACHE = new ResolutionCache(
+			ResolutionCache.DEFAULT_CAPACITY);
+
+	private static final HostLimiter HOST_LIMITER = new HostLimiter(
+			MAX_CONCURRENT_PER_HOST);
+
+	private static final ExecutorService BATCH_EXECUTOR = Executors
+			.newFixedThreadPool(MAX_BATCH_PARALLELISM, new DaemonThreadFactory(
+					"Deshortener batch"));
+
+	/** Number of threads for {@link #deshortenAsync(Uri, Callback)}. */
+	private static final int ASYNC_THREADS = 2;
+
+	private static final ExecutorService ASYNC_EXECUTOR = Executors
+			.newFixedThreadPool(ASYNC_THREADS, new DaemonThreadFactory(
+					"Deshortener async"));
+
+	/** Resolves and connects to popular shorteners in the background. */
+	private static final ExecutorService WARM_UP_EXECUTOR = Executors
+			.newSingleThreadExecutor(new DaemonThreadFactory(
+					"Deshortener warm-up"));
+
+	private static final AtomicBoolean IS_WARMING_UP = new AtomicBoolean();
+
+	/** How long requests to a failing host are rejected at first. */
+	private static final long CIRCUIT_INITIAL_BACKOFF_MILLIS = 10 * 1000;
+
+	/** The longest time requests to a failing host are rejected. */
+	private static final long CIRCUIT_MAX_BACKOFF_MILLIS = 10 * 60 * 1000;
+
+	/** How often a lookup sends a request again after being throttled. */
+	private static final int MAX_THROTTLED_RETRIES = 2;
+
+	/** Rejects requests to hosts which keep failing. */
+	private static final CircuitBreaker CIRCUITS = new CircuitBreaker(
+			CIRCUIT_INITIAL_BACKOFF_MILLIS, CIRCUIT_MAX_BACKOFF_MILLIS);
+
+	/** Coalesces concurrent lookups of the same uri. */
+	private static final SingleFlight IN_FLIGHT = new SingleFlight();
+
+	private static final DeshortenerStats STATS = new DeshortenerStats(CACHE,
+			IN_FLIGHT);
+
+	/** Cancels lookups which run longer than their deadline. */
+	private static final ScheduledExecutorService DEADLINE_TIMER = Executors
+			.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+					"Deshortener deadline"));
+
+	private static volatile int maxRedirects = DEFAULT_MAX_REDIRECTS;
+	private static volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private static volatile int socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+	private static volatile long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+
+	/**
+	 * Deshortens the provided uri using the {@link Strategy#HEAD_THEN_GET}
+	 * strategy.
+	 *
+	 * @param uriToDeshorten
+	 *            The uri to deshorten.
+	 * @return Returns the result of the deshorten process.
+	 * @throws IllegalArgumentException
+	 *             If the provided uri is invalid.
+	 * @see #deshorten(Uri, Strategy)
+	 */
+	public static Result deshorten(Uri uriToDeshorten) {
+		return deshorten(uriToDeshorten, Strategy.HEAD_THEN_GET);
 	}
 
 	/**
-	 * Deshortens the provided uri.
+	 * Deshortens the provided uri. Redirects are followed until a response is
+	 * not a redirection anymore, a redirect cycle is detected or
+	 * {@link #setMaxRedirects(int)} redirects were followed. Results of
+	 * earlier lookups are delivered from the {@link #getCache() cache},
+	 * concurrent lookups of the same uri share one set of requests. Links of
+	 * known redirect wrappers are unwrapped without any request.
 	 *
 	 * @param uriToDeshorten
 	 *            The uri to deshorten.
+	 * @param strategy
+	 *            The request method strategy to use.
 	 * @return Returns the result of the deshorten process. The result is only
-	 *         successful when the given uri returns an 30x. Then value of the
-	 *         Location header is returned within the result.
+	 *         successful when the given uri returns an 30x. Then the last
+	 *         location of the followed redirect chain is returned within the
+	 *         result.
 	 * @throws IllegalArgumentException
 	 *             If the provided uri is invalid.
+	 * @throws NullPointerException
+	 *             If strategy is <code>null</code>.
 	 */
-	public static Result deshorten(Uri uriToDeshorten) {
-		// Checks if the url shortener shows a preview
-		if (checkForPreview(uriToDeshorten)) {
-			return new Result(ResultType.SHOWS_PREVIEW);
+	public static Result deshorten(Uri uriToDeshorten, Strategy strategy) {
+		if (strategy == null) {
+			throw new NullPointerException("strategy must not be null");
+		}
+		return deshortenAndRecord(uriToDeshorten, strategy,
+				new Cancellation());
+	}
+
+	/**
+	 * Deshortens the provided uri in the background using the
+	 * {@link Strategy#HEAD_THEN_GET} strategy.
+	 *
+	 * @see #deshortenAsync(Uri, Strategy, ResolutionStore, Callback)
+	 */
+	public static PendingResult deshortenAsync(Uri uriToDeshorten,
+			Callback callback) {
+		return deshortenAsync(uriToDeshorten, Strategy.HEAD_THEN_GET, null,
+				callback);
+	}
+
+	/**
+	 * Deshortens the provided uri in the background without consulting a
+	 * {@link ResolutionStore}.
+	 *
+	 * @see #deshortenAsync(Uri, Strategy, ResolutionStore, Callback)
+	 */
+	public static PendingResult deshortenAsync(Uri uriToDeshorten,
+			Strategy strategy, Callback callback) {
+		return deshortenAsync(uriToDeshorten, strategy, null, callback);
+	}
+
+	/**
+	 * Deshortens the provided uri in the background. Lookups run on threads
+	 * dedicated to interactive lookups and never wait for batches or other
+	 * background work.
+	 *
+	 * @param uriToDeshorten
+	 *            The uri to deshorten.
+	 * @param strategy
+	 *            The request method strategy to use.
+	 * @param store
+	 *            Is asked for a stored resolution on the background thread
+	 *            first, no request is sent if it has one. May be
+	 *            <code>null</code>.
+	 * @param callback
+	 *            Is notified about the result from a background thread unless
+	 *            the lookup was cancelled. May be <code>null</code>.
+	 * @return The pending result. Cancelling it aborts the lookup.
+	 * @throws NullPointerException
+	 *             If uriToDeshorten or strategy is <code>null</code>.
+	 */
+	public static PendingResult deshortenAsync(final Uri uriToDeshorten,
+			final Strategy strategy, final ResolutionStore store,
+			Callback callback) {
+		if (uriToDeshorten == null) {
+			throw new NullPointerException("uriToDeshorten must not be null");
+		}
+		if (strategy == null) {
+			throw new NullPointerException("strategy must not be null");
+		}
+
+		final Cancellation cancellation = new Cancellation();
+		PendingResult pendingResult = new PendingResult(uriToDeshorten,
+				new Callable<Result>() {
+					public Result call() {
+						if (store != null) {
+							Uri storedUri = store.getResolvedUri(uriToDeshorten);
+							if (storedUri != null) {
+								return new Result(storedUri);
+							}
+						}
+						return deshortenAndRecord(uriToDeshorten, strategy,
+								cancellation);
+					}
+				}, cancellation, callback);
+		ASYNC_EXECUTOR.execute(pendingResult);
+		return pendingResult;
+	}
+
+	private static Result deshortenAndRecord(Uri uriToDeshorten,
+			Strategy strategy, Cancellation cancellation) {
+		long startNanos = System.nanoTime();
+		Result result = deshorten(uriToDeshorten, strategy, cancellation);
+		STATS.recordLookup(result, System.nanoTime() - startNanos);
+		return result;
+	}
+
+	private static Result deshorten(final Uri uriToDeshorten,
+			final Strategy strategy, final Cancellation cancellation) {
+
+		// Wrappers carry their target in the query, no request is needed.
+		Uri unwrappedUri = WrapperRules.unwrap(uriToDeshorten);
+		if (unwrappedUri != null) {
+			if (ShortenerRegistry.getDefault().isShortener(
+					unwrappedUri.getHost())) {
+				Result result = deshorten(unwrappedUri, strategy,
+						cancellation);
+				if (result.wasSuccessful()
+						|| ResultType.CANCELLED.equals(result.getResultType())) {
+					return result;
+				}
+			}
+			return new Result(unwrappedUri);
+		}
+
+		Result cachedResult = CACHE.get(uriToDeshorten);
+		if (cachedResult != null) {
+			return cachedResult;
+		}
+
+		return IN_FLIGHT.execute(getLookupKey(uriToDeshorten, strategy),
+				new Callable<Result>() {
+					public Result call() {
+						// An equal lookup may have finished just before.
+						Result cachedResult = CACHE.peek(uriToDeshorten);
+						if (cachedResult != null) {
+							return cachedResult;
+						}
+						return followRedirectsUntilDeadline(uriToDeshorten,
+								strategy, cancellation);
+					}
+				}, cancellation, TimeUnit.MILLISECONDS.toNanos(deadlineMillis));
+	}
+
+	private static Result followRedirectsUntilDeadline(Uri uriToDeshorten,
+			Strategy strategy, final Cancellation cancellation) {
+		ScheduledFuture<?> deadline = DEADLINE_TIMER.schedule(new Runnable() {
+			public void run() {
+				cancellation.timeOut();
+			}
+		}, deadlineMillis, TimeUnit.MILLISECONDS);
+		try {
+			return followRedirects(uriToDeshorten, strategy, cancellation);
+		} finally {
+			deadline.cancel(false);
+		}
+	}
+
+	/**
+	 * Delivers the key under which equal lookups are coalesced. Scheme and
+	 * host are case insensitive, default ports and fragments don't reach the
+	 * server.
+	 */
+	private static String getLookupKey(Uri uri, Strategy strategy) {
+		StringBuilder key = new StringBuilder(strategy.name()).append(' ');
+		String scheme = String.valueOf(uri.getScheme()).toLowerCase();
+		key.append(scheme).append("://");
+		key.append(String.valueOf(uri.getHost()).toLowerCase());
+		int port = uri.getPort();
+		boolean isDefaultPort = (port == 80 && "http".equals(scheme))
+				|| (port == 443 && "https".equals(scheme));
+		if (port != -1 && !isDefaultPort) {
+			key.append(':').append(port);
+		}
+		String path = uri.getEncodedPath();
+		key.append(path == null || path.length() == 0 ? "/" : path);
+		if (uri.getEncodedQuery() != null) {
+			key.append('?').append(uri.getEncodedQuery());
+		}
+		return key.toString();
+	}
+
+	private static Result followRedirects(Uri uriToDeshorten,
+			Strategy strategy, Cancellation cancellation) {
+		HttpClient client = SharedHttpClient.get();
+		long ttlMillis = Long.MAX_VALUE;
+		List<Hop> hops = new ArrayList<Hop>();
+		Set<String> visitedUris = new HashSet<String>();
+		visitedUris.add(uriToDeshorten.toString());
+		Uri currentUri = uriToDeshorten;
+		int throttledCount = 0;
+
+		while (hops.size() < maxRedirects) {
+			if (cancellation.isTimedOut() && !hops.isEmpty()) {
+				// Keep what we have but don't cache the partial chain.
+				ttlMillis = 0;
+				break;
+			}
+			if (cancellation.isCancelled()) {
+				return new Result(cancellation.isTimedOut() ? ResultType.TIMEOUT
+						: ResultType.CANCELLED);
+			}
+
+			String host = currentUri.getHost();
+			String hostKey = HostLimiter.getHostKey(currentUri);
+			long ticket = CIRCUITS.allowRequest(hostKey);
+			if (ticket == CircuitBreaker.REJECTED) {
+				if (hops.isEmpty()) {
+					return new Result(ResultType.HOST_UNAVAILABLE);
+				}
+				// Keep what we have but don't cache the partial chain.
+				ttlMillis = 0;
+				break;
+			}
+
+			long waitStart = System.nanoTime();
+			while (!cancellation.isCancelled()) {
+				long delayNanos = HOST_LIMITER.tryReserveRequest(hostKey);
+				if (delayNanos == 0) {
+					break;
+				}
+				try {
+					cancellation.await(delayNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					cancellation.cancel();
+				}
+			}
+			if (cancellation.isCancelled()) {
+				// The request is not sent, the result is delivered at the top
+				// of the loop.
+				CIRCUITS.recordAbandoned(hostKey, ticket);
+				continue;
+			}
+			STATS.recordQueueDelay(host, System.nanoTime() - waitStart);
+
+			// Open the network connetion
+			PhaseTimer timer = PhaseTimer.start();
+			// Preview pages are read for a target
+			boolean useHead = strategy == Strategy.HEAD_THEN_GET
+					&& !HEAD_REJECTING_HOSTS.containsKey(host)
+					&& !ShortenerRegistry.getDefault().hasFlag(host,
+							ShortenerRegistry.NEEDS_GET)
+					&& !checkForPreview(currentUri);
+			HttpUriRequest request = null;
+			HttpResponse response = null;
+			IOException failure = null;
+			Uri location = null;
+			try {
+				request = createRequest(useHead, currentUri);
+				cancellation.setCurrentRequest(request);
+				response = client.execute(request);
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (useHead
+						&& needsGetFallback(statusCode, hops.isEmpty(),
+								currentUri)) {
+					if (statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED
+							|| statusCode == HttpStatus.SC_NOT_IMPLEMENTED) {
+						HEAD_REJECTING_HOSTS.put(host, Boolean.TRUE);
+					}
+					releaseConnection(request, response);
+					response = null;
+					request = createRequest(false, currentUri);
+					cancellation.setCurrentRequest(request);
+					response = client.execute(request);
+					statusCode = response.getStatusLine().getStatusCode();
+				}
+				long retryAfterMillis = HostLimiter
+						.getRetryAfterMillis(response);
+				if (retryAfterMillis != -1 && retryAfterMillis <= deadlineMillis
+						&& throttledCount < MAX_THROTTLED_RETRIES) {
+					// The host is not failing, it wants us to slow down. The
+					// request is sent again once it lets us.
+					throttledCount++;
+					HOST_LIMITER.retryAfter(hostKey, retryAfterMillis);
+					STATS.recordThrottled(host);
+					CIRCUITS.recordAbandoned(hostKey, ticket);
+					continue;
+				}
+				location = getRedirectLocation(currentUri, response);
+				if (location == null && statusCode == HttpStatus.SC_OK
+						&& request instanceof HttpGet
+						&& isScannable(currentUri)) {
+					location = scanForTarget(currentUri, response);
+				}
+				if (location != null) {
+					ttlMillis = Math.min(ttlMillis,
+							ResolutionCache.computeTtl(response));
+				}
+				Timing timing = timer.getTiming();
+				hops.add(new Hop(currentUri, request.getMethod(), statusCode,
+						timing.getTotalNanos(), timing));
+				STATS.recordRequest(host, timing.getTotalNanos());
+				if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR
+						|| timing.getTotalNanos() > TimeUnit.MILLISECONDS
+								.toNanos(CircuitBreaker.SLOW_RESPONSE_MILLIS)) {
+					CIRCUITS.recordFailure(hostKey, ticket);
+				} else {
+					CIRCUITS.recordSuccess(hostKey, ticket);
+				}
+			} catch (ClientProtocolException e) {
+				failure = e;
+				Log.e(LOG_TAG, "Unable to communicate to url: "
+						+ currentUri.toString(), e);
+			} catch (IOException e) {
+				failure = e;
+				Log.e(LOG_TAG, "Unable to communicate to url: "
+						+ currentUri.toString(), e);
+			} catch (RuntimeException e) {
+				// Says nothing about the host, but a probe must not stay
+				// pending until it times out.
+				CIRCUITS.recordAbandoned(hostKey, ticket);
+				throw e;
+			} finally {
+				PhaseTimer.stop();
+				cancellation.setCurrentRequest(null);
+				releaseConnection(request, response);
+			}
+
+			if (cancellation.isCancelled() && !cancellation.isTimedOut()) {
+				CIRCUITS.recordAbandoned(hostKey, ticket);
+				return new Result(ResultType.CANCELLED);
+			}
+			if (response == null) {
+				STATS.recordFailure(host);
+				CIRCUITS.recordFailure(hostKey, ticket);
+				if (hops.isEmpty() && checkForPreview(uriToDeshorten)) {
+					return new Result(ResultType.SHOWS_PREVIEW);
+				}
+				if (hops.isEmpty()) {
+					boolean isTimeout = cancellation.isTimedOut()
+							|| failure instanceof InterruptedIOException;
+					return new Result(isTimeout ? ResultType.TIMEOUT
+							: ResultType.NETWORK_ERROR);
+				}
+				// The shortener itself answered, keep what we have but don't
+				// cache the partial chain.
+				ttlMillis = 0;
+				break;
+			}
+			if (location == null) {
+				break;
+			}
+			if (!isFollowable(location)) {
+				// E.g. a link into an app store, it is the destination.
+				currentUri = location;
+				break;
+			}
+			if (!visitedUris.add(location.toString())) {
+				Log.w(LOG_TAG, "Redirect cycle detected at: " + location);
+				break;
+			}
+			currentUri = location;
+			if (checkForPreview(currentUri)) {
+				break;
+			}
 		}
 
-		// Open the network connetion
-		HttpGet get = new HttpGet(uriToDeshorten.toString());
-		DefaultHttpClient client = new DefaultHttpClient();
-		HttpParams clientParams = client.getParams();
-		HttpClientParams.setRedirecting(clientParams, false);
-		HttpResponse response = null;
+		if (currentUri == uriToDeshorten) {
+			return new Result(
+					checkForPreview(uriToDeshorten) ? ResultType.SHOWS_PREVIEW
+							: ResultType.CANNOT_DESHORTEN);
+		}
+		Result result = new Result(currentUri, hops, ttlMillis);
+		CACHE.put(uriToDeshorten, result, ttlMillis);
+		return result;
+	}
+
+	/**
+	 * Creates a HEAD or GET request with the configured timeouts.
+	 */
+	private static HttpUriRequest createRequest(boolean useHead, Uri uri) {
+		HttpUriRequest request = useHead ? new HttpHead(uri.toString())
+				: new HttpGet(uri.toString());
+		HttpParams params = request.getParams();
+		HttpConnectionParams.setConnectionTimeout(params,
+				connectTimeoutMillis);
+		HttpConnectionParams.setSoTimeout(params, socketTimeoutMillis);
+		return request;
+	}
+
+	/**
+	 * Resolves the host names of popular shorteners in the background, so
+	 * that the first lookup against them does not wait for DNS. Does nothing
+	 * if a warm-up is still running.
+	 *
+	 * @param preconnect
+	 *            Also opens a connection to each of them which is kept in the
+	 *            pool for the next lookups until it was idle for too long.
+	 */
+	public static void warmUp(final boolean preconnect) {
+		if (!IS_WARMING_UP.compareAndSet(false, true)) {
+			return;
+		}
+		WARM_UP_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				try {
+					for (String host : ShortenerRegistry.getDefault()
+							.getHosts(ShortenerRegistry.POPULAR)) {
+						warmUp(host, preconnect);
+					}
+				} catch (InterruptedException e) {
+					Log.d(LOG_TAG, "Warm-up interrupted");
+				} finally {
+					IS_WARMING_UP.set(false);
+				}
+			}
+		});
+	}
+
+	private static void warmUp(String host, boolean preconnect)
+			throws InterruptedException {
 		try {
-			response = client.execute(get);
-		} catch (ClientProtocolException e) {
-			Log.e(LOG_TAG, "Unable to communicate to shortened url: "
-					+ uriToDeshorten.toString(), e);
-			return new Result(ResultType.NETWORK_ERROR);
+			SharedHttpClient.getDnsCache().resolve(host);
+			if (preconnect) {
+				SharedHttpClient.preconnect(new HttpHost(host, -1, "http"));
+			}
 		} catch (IOException e) {
-			Log.e(LOG_TAG, "Unable to communicate to shortened url: "
-					+ uriToDeshorten.toString(), e);
-			return new Result(ResultType.NETWORK_ERROR);
+			Log.w(LOG_TAG, "Unable to warm up " + host, e);
 		}
+	}
 
-		// Check for redirection
-		boolean isRedirection = ((response.getStatusLine().getStatusCode() == HttpStatus.SC_MOVED_PERMANENTLY)
-				|| (response.getStatusLine().getStatusCode() == HttpStatus.SC_MOVED_TEMPORARILY) || (response
-				.getStatusLine().getStatusCode() == HttpStatus.SC_SEE_OTHER));
-		if (response != null && isRedirection) {
-			Header header = response.getFirstHeader("Location");
-			String redirectValue = header.getValue();
-			Uri deshortenedUri = Uri.parse(redirectValue);
-			return new Result(deshortenedUri);
-		} else {
-			return new Result(ResultType.CANNOT_DESHORTEN);
+	/**
+	 * Sets the timeouts of lookups. A lookup which runs into a timeout ends
+	 * with a {@link ResultType#TIMEOUT} result unless at least one redirect
+	 * was followed, then the uri reached so far is delivered.
+	 *
+	 * @param connectTimeoutMillis
+	 *            The maximum time to establish a connection.
+	 * @param socketTimeoutMillis
+	 *            The maximum time to wait for data from an established
+	 *            connection.
+	 * @param deadlineMillis
+	 *            The maximum time of a whole lookup including all redirects.
+	 * @throws IllegalArgumentException
+	 *             If a timeout is smaller than 1.
+	 */
+	public static void setTimeouts(int connectTimeoutMillis,
+			int socketTimeoutMillis, long deadlineMillis) {
+		if (connectTimeoutMillis < 1 || socketTimeoutMillis < 1
+				|| deadlineMillis < 1) {
+			throw new IllegalArgumentException(
+					"timeouts must be at least 1ms");
 		}
+		Deshortener.connectTimeoutMillis = connectTimeoutMillis;
+		Deshortener.socketTimeoutMillis = socketTimeoutMillis;
+		Deshortener.deadlineMillis = deadlineMillis;
+	}
+
+	/**
+	 * @return The number of lookups which were answered by an equal lookup
+	 *         running concurrently instead of sending requests on their own.
+	 */
+	public static long getCoalescedCount() {
+		return IN_FLIGHT.getCoalescedCount();
+	}
+
+	/**
+	 * Delivers the statistics about all lookups made since the application
+	 * started or the statistics were reset.
+	 *
+	 * @return The statistics.
+	 */
+	public static DeshortenerStats getStats() {
+		return STATS;
 	}
 
-	private static void fillPreviewHosts() {
-		PREVIEW_HOSTS.add("cli.gs");
+	/**
+	 * Delivers the cache holding the results of earlier lookups. Successful
+	 * results are answered from this cache until their time to live expires.
+	 *
+	 * @return The resolution cache.
+	 */
+	public static ResolutionCache getCache() {
+		return CACHE;
+	}
+
+	/**
+	 * Deshortens all provided uris in parallel using the
+	 * {@link #DEFAULT_BATCH_PARALLELISM default parallelism}.
+	 *
+	 * @see #deshortenAll(Collection, int, Callback)
+	 */
+	public static List<Result> deshortenAll(Collection<Uri> urisToDeshorten)
+			throws InterruptedException {
+		return deshortenAll(urisToDeshorten, DEFAULT_BATCH_PARALLELISM, null);
+	}
+
+	/**
+	 * Deshortens all provided uris in parallel. At most parallelism lookups
+	 * run at the same time and at most {@link #MAX_CONCURRENT_PER_HOST} of
+	 * them against the same shortener unless it has
+	 * {@link #setHostLimits(String, int, double) own limits}. The shorteners
+	 * take turns, a busy shortener does not hold up the lookups of the others.
+	 * Duplicate uris are only deshortened once.
+	 *
+	 * @param urisToDeshorten
+	 *            The uris to deshorten.
+	 * @param parallelism
+	 *            The maximum number of concurrent lookups. Values above
+	 *            {@link #MAX_BATCH_PARALLELISM} are reduced to it.
+	 * @param callback
+	 *            Is notified about each result as soon as it is available.
+	 *            The callback is called from a background thread. May be
+	 *            <code>null</code>.
+	 * @return The results in the order of the provided uris.
+	 * @throws InterruptedException
+	 *             If the calling thread was interrupted while waiting for the
+	 *             results.
+	 * @throws IllegalArgumentException
+	 *             If parallelism is smaller than 1.
+	 */
+	public static List<Result> deshortenAll(Collection<Uri> urisToDeshorten,
+			int parallelism, Callback callback) throws InterruptedException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"parallelism must be at least 1");
+		}
+
+		Semaphore batchPermits = new Semaphore(Math.min(parallelism,
+				MAX_BATCH_PARALLELISM));
+		BatchQueue queue = new BatchQueue(urisToDeshorten, batchPermits,
+				callback);
+		Map<Uri, PendingResult> pendingResults = new HashMap<Uri, PendingResult>();
+		List<BatchLookup> lookups = new ArrayList<BatchLookup>();
+		try {
+			while (!queue.isEmpty()) {
+				batchPermits.acquire();
+				int releaseCount = HOST_LIMITER.getReleaseCount();
+				BatchLookup lookup = queue.poll();
+				if (lookup == null) {
+					// All shorteners with queued uris are busy.
+					batchPermits.release();
+					HOST_LIMITER.awaitRelease(releaseCount);
+				} else {
+					// Cancelling the pending result also aborts the request
+					// in flight.
+					PendingResult pendingResult = new PendingResult(
+							lookup.uri, lookup, lookup.cancellation, null);
+					pendingResults.put(lookup.uri, pendingResult);
+					lookups.add(lookup);
+					BATCH_EXECUTOR.execute(pendingResult);
+				}
+			}
+
+			List<Result> results = new ArrayList<Result>(
+					urisToDeshorten.size());
+			for (Uri uri : urisToDeshorten) {
+				results.add(getBatchResult(pendingResults.get(uri)));
+			}
+			return results;
+		} catch (InterruptedException e) {
+			for (PendingResult pendingResult : pendingResults.values()) {
+				pendingResult.cancel(true);
+			}
+			for (BatchLookup lookup : lookups) {
+				lookup.releaseIfNotStarted();
+			}
+			throw e;
+		}
+	}
+
+	private static Result getBatchResult(Future<Result> pendingResult)
+			throws InterruptedException {
+		try {
+			return pendingResult.get();
+		} catch (ExecutionException e) {
+			// Lookups don't throw checked exceptions.
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw (RuntimeException) cause;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of redirects followed by a single
+	 * {@link #deshorten(Uri)} call.
+	 *
+	 * @param maxRedirects
+	 *            The maximum number of redirects. Must be at least 1.
+	 * @throws IllegalArgumentException
+	 *             If maxRedirects is smaller than 1.
+	 */
+	public static void setMaxRedirects(int maxRedirects) {
+		if (maxRedirects < 1) {
+			throw new IllegalArgumentException(
+					"maxRedirects must be at least 1");
+		}
+		Deshortener.maxRedirects = maxRedirects;
+	}
+
+	/**
+	 * Sets the limits of a single shortener. Requests to it are spaced out
+	 * to the maximum rate, allowing bursts of one second worth of requests.
+	 * Batch lookups run at most maxConcurrent lookups against it at the same
+	 * time. Shorteners without own limits have no rate limit and at most
+	 * {@link #MAX_CONCURRENT_PER_HOST} concurrent batch lookups.
+	 *
+	 * @param host
+	 *            The host of the shortener. Includes the port if the
+	 *            shortener is not reached on the default port.
+	 * @param maxConcurrent
+	 *            The maximum number of concurrent batch lookups.
+	 * @param maxRequestsPerSecond
+	 *            The maximum request rate or 0 for no limit.
+	 * @throws NullPointerException
+	 *             If host is null.
+	 * @throws IllegalArgumentException
+	 *             If maxConcurrent is smaller than 1 or maxRequestsPerSecond
+	 *             is negative.
+	 */
+	public static void setHostLimits(String host, int maxConcurrent,
+			double maxRequestsPerSecond) {
+		if (host == null) {
+			throw new NullPointerException("host must not be null");
+		}
+		HOST_LIMITER.setLimits(host.toLowerCase(), maxConcurrent,
+				maxRequestsPerSecond);
+	}
+
+	/**
+	 * Forgets everything learned about hosts during earlier lookups.
+	 */
+	static void resetHostState() {
+		HEAD_REJECTING_HOSTS.clear();
+		CIRCUITS.reset();
+		HOST_LIMITER.reset();
+	}
+
+	/**
+	 * Delivers the absolute target of a redirect response.
+	 *
+	 * @return The target or <code>null</code> if the response is not a
+	 *         redirection or the target is not a valid uri.
+	 */
+	private static Uri getRedirectLocation(Uri requestedUri,
+			HttpResponse response) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		Header header = response.getFirstHeader("Location");
+		if (!isRedirection(statusCode) || header == null) {
+			return null;
+		}
+
+		return resolveLocation(requestedUri, header.getValue().trim());
+	}
+
+	/**
+	 * Resolves a possibly relative location against the requested uri.
+	 *
+	 * @return The absolute location or <code>null</code> if it is not a valid
+	 *         uri.
+	 */
+	private static Uri resolveLocation(Uri requestedUri,
+			String redirectValue) {
+		Uri location = Uri.parse(redirectValue);
+		if (location.isAbsolute()) {
+			return location;
+		}
+
+		// Relative location, resolve it against the requested uri.
+		try {
+			URI base = new URI(requestedUri.toString());
+			return Uri.parse(base.resolve(redirectValue).toString());
+		} catch (URISyntaxException e) {
+			Log.w(LOG_TAG, "Cannot resolve relative location: "
+					+ redirectValue, e);
+			return null;
+		} catch (IllegalArgumentException e) {
+			Log.w(LOG_TAG, "Cannot resolve relative location: "
+					+ redirectValue, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Determines if a request can be sent to the location. Only valid http
+	 * and https uris are followed, any other location ends the chain.
+	 */
+	private static boolean isFollowable(Uri location) {
+		try {
+			URI uri = new URI(location.toString());
+			String scheme = uri.getScheme();
+			return ("http".equalsIgnoreCase(scheme) || "https"
+					.equalsIgnoreCase(scheme))
+					&& uri.getHost() != null;
+		} catch (URISyntaxException e) {
+			Log.w(LOG_TAG, "Invalid location: " + location, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Shuts down the shared http client and closes all its pooled connections.
+	 * Should be called when no more deshortening is expected. A later call to
+	 * {@link #deshorten(Uri)} transparently creates a new client.
+	 */
+	public static void shutdown() {
+		SharedHttpClient.shutdown();
+	}
+
+	/**
+	 * Determines if a response to a HEAD request must be verified with a GET
+	 * request. This is the case if the host rejects HEAD requests or if the
+	 * shortener itself did not redirect, as some shorteners only redirect
+	 * GET requests. A known shortener or wrapper further down the chain may
+	 * redirect by markup, its page must be read as well. Shorteners known to
+	 * support HEAD are trusted. A throttled or overloaded shortener won't
+	 * answer a GET request any better.
+	 */
+	private static boolean needsGetFallback(int headStatusCode,
+			boolean isFirstHop, Uri uri) {
+		if (headStatusCode == HostLimiter.SC_TOO_MANY_REQUESTS
+				|| headStatusCode == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+			return false;
+		}
+		if (headStatusCode == HttpStatus.SC_METHOD_NOT_ALLOWED
+				|| headStatusCode == HttpStatus.SC_NOT_IMPLEMENTED) {
+			return true;
+		}
+		return (isFirstHop || isScannable(uri))
+				&& !isRedirection(headStatusCode)
+				&& !ShortenerRegistry.getDefault().hasFlag(uri.getHost(),
+						ShortenerRegistry.SUPPORTS_HEAD);
+	}
+
+	private static boolean isRedirection(int statusCode) {
+		return ((statusCode == HttpStatus.SC_MOVED_PERMANENTLY)
+				|| (statusCode == HttpStatus.SC_MOVED_TEMPORARILY)
+				|| (statusCode == HttpStatus.SC_SEE_OTHER) || (statusCode == HttpStatus.SC_TEMPORARY_REDIRECT));
+	}
+
+	/**
+	 * Determines if a page answered with 200 may redirect by markup. Only
+	 * pages of known shorteners and wrappers are scanned, any other page is
+	 * the final destination.
+	 */
+	private static boolean isScannable(Uri uri) {
+		return ShortenerRegistry.getDefault().isShortener(uri.getHost())
+				|| WrapperRules.isWrapper(uri);
+	}
+
+	/**
+	 * Reads at most {@link #MAX_SCANNED_BODY_BYTES} of an html page looking
+	 * for a meta refresh or script redirect. The rest of the page is not
+	 * read.
+	 *
+	 * @return The absolute target or <code>null</code> if none was found.
+	 */
+	private static Uri scanForTarget(Uri requestedUri, HttpResponse response)
+			throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return null;
+		}
+		Header contentType = entity.getContentType();
+		if (contentType != null
+				&& !contentType.getValue().toLowerCase().contains("html")) {
+			return null;
+		}
+		String target = RefreshScanner.findTarget(entity.getContent(),
+				MAX_SCANNED_BODY_BYTES);
+		if (target == null) {
+			return null;
+		}
+		Uri location = resolveLocation(requestedUri, target);
+		if (location == null || !isFollowable(location)) {
+			return null;
+		}
+		return location;
+	}
+
+	/**
+	 * Gives the connection used by the request back to the pool. Small bodies
+	 * are consumed so that the connection can be kept alive. Otherwise, or if
+	 * consuming fails, the request is aborted right after the headers arrived
+	 * which closes the connection without downloading the body.
+	 */
+	private static void releaseConnection(HttpUriRequest request,
+			HttpResponse response) {
+		if (request == null || response == null
+				|| response.getEntity() == null) {
+			return;
+		}
+		long contentLength = response.getEntity().getContentLength();
+		boolean isSmallBody = contentLength >= 0
+				&& contentLength <= MAX_CONSUMED_BODY_BYTES;
+		if (!isSmallBody) {
+			request.abort();
+			return;
+		}
+		try {
+			response.getEntity().consumeContent();
+		} catch (IOException e) {
+			request.abort();
+		}
 	}
 
 	private static boolean checkForPreview(Uri uri) {
-		return PREVIEW_HOSTS.contains(uri.getHost());
+		return ShortenerRegistry.getDefault().hasFlag(uri.getHost(),
+				ShortenerRegistry.PREVIEW);
 	}
 
 	/**
@@ -121,6 +1036,8 @@ public final class Deshortener {
 
 		private final ResultType resultType;
 		private final Uri uri;
+		private final List<Hop> hops;
+		private final long timeToLiveMillis;
 
 		/**
 		 * Creates a successful result.
@@ -131,12 +1048,49 @@ public final class Deshortener {
 		 *             Is thrown in case deshortenedUri is <code>null.</code>
 		 */
 		public Result(Uri deshortenedUri) {
+			this(deshortenedUri, Collections.<Hop> emptyList());
+		}
+
+		/**
+		 * Creates a successful result.
+		 *
+		 * @param deshortenedUri
+		 *            The successful deshortened uri.
+		 * @param hops
+		 *            The requests which were made to deshorten the uri.
+		 * @throws NullPointerException
+		 *             Is thrown in case deshortenedUri or hops is
+		 *             <code>null.</code>
+		 */
+		public Result(Uri deshortenedUri, List<Hop> hops) {
+			this(deshortenedUri, hops, 0);
+		}
+
+		/**
+		 * Creates a successful result.
+		 *
+		 * @param deshortenedUri
+		 *            The successful deshortened uri.
+		 * @param hops
+		 *            The requests which were made to deshorten the uri.
+		 * @param timeToLiveMillis
+		 *            How long the result may be cached.
+		 * @throws NullPointerException
+		 *             Is thrown in case deshortenedUri or hops is
+		 *             <code>null.</code>
+		 */
+		public Result(Uri deshortenedUri, List<Hop> hops, long timeToLiveMillis) {
 			if (deshortenedUri == null) {
 				throw new NullPointerException(
 						"deshortenedUri must not be null");
 			}
+			if (hops == null) {
+				throw new NullPointerException("hops must not be null");
+			}
 
 			uri = deshortenedUri;
+			this.hops = Collections.unmodifiableList(new ArrayList<Hop>(hops));
+			this.timeToLiveMillis = Math.max(0, timeToLiveMillis);
 			resultType = ResultType.SUCCESS;
 		}
 
@@ -150,6 +1104,8 @@ public final class Deshortener {
 		 */
 		public Result(ResultType unsuccessfulReason) {
 			uri = null;
+			hops = Collections.emptyList();
+			timeToLiveMillis = 0;
 			resultType = unsuccessfulReason;
 
 			if (wasSuccessful()) {
@@ -196,6 +1152,40 @@ public final class Deshortener {
 			return uri;
 		}
 
+		/**
+		 * Delivers the requests which were made to deshorten the uri in the
+		 * order they were made. The last hop is the one whose response was
+		 * not a redirection anymore, unless the chain was cut short.
+		 *
+		 * @return An unmodifiable list of hops. Empty if the result was not
+		 *         successful.
+		 */
+		public List<Hop> getHops() {
+			return hops;
+		}
+
+		/**
+		 * Delivers the phases of all requests made to deshorten the uri
+		 * summed up, see the {@link #getHops() hops} for the phases of each
+		 * request.
+		 *
+		 * @return The timing, {@link Timing#UNKNOWN} if no request was made.
+		 */
+		public Timing getTiming() {
+			return Timing.sum(hops);
+		}
+
+		/**
+		 * Delivers how long the result may be cached. Derived from the
+		 * caching headers and status codes of the followed redirects.
+		 *
+		 * @return The time to live in milliseconds, zero if the result must
+		 *         not be cached.
+		 */
+		public long getTimeToLiveMillis() {
+			return timeToLiveMillis;
+		}
+
 		@Override
 		public String toString() {
 			StringBuilder stringRep = new StringBuilder("Deshortened result: [");
@@ -203,8 +1193,416 @@ public final class Deshortener {
 			if (wasSuccessful()) {
 				stringRep.append("; URL: ").append(
 						getDeshortenedUri().toString());
+				stringRep.append("; Hops: ").append(hops);
+				stringRep.append("; Timing: ").append(getTiming());
 			}
 			return stringRep.toString();
 		}
 	}
+
+	/**
+	 * A single request made while following a redirect chain.
+	 */
+	public final static class Hop {
+
+		private final Uri uri;
+		private final String method;
+		private final int statusCode;
+		private final long durationNanos;
+		private final Timing timing;
+
+		/**
+		 * Creates a hop.
+		 *
+		 * @param uri
+		 *            The requested uri.
+		 * @param method
+		 *            The request method of the request which delivered the
+		 *            response.
+		 * @param statusCode
+		 *            The http status code of the response.
+		 * @param durationNanos
+		 *            The time the request took in nanoseconds.
+		 * @throws NullPointerException
+		 *             Is thrown in case uri or method is <code>null.</code>
+		 */
+		public Hop(Uri uri, String method, int statusCode, long durationNanos) {
+			this(uri, method, statusCode, durationNanos, Timing.UNKNOWN);
+		}
+
+		Hop(Uri uri, String method, int statusCode, long durationNanos,
+				Timing timing) {
+			if (uri == null) {
+				throw new NullPointerException("uri must not be null");
+			}
+			if (method == null) {
+				throw new NullPointerException("method must not be null");
+			}
+			this.uri = uri;
+			this.method = method;
+			this.statusCode = statusCode;
+			this.durationNanos = durationNanos;
+			this.timing = timing;
+		}
+
+		/**
+		 * @return The requested uri.
+		 */
+		public Uri getUri() {
+			return uri;
+		}
+
+		/**
+		 * @return The request method, HEAD or GET.
+		 */
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return The http status code of the response.
+		 */
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		/**
+		 * @return The time from sending the request until the response
+		 *         headers were received in nanoseconds. Includes the GET
+		 *         request in case a HEAD request had to be repeated.
+		 */
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		/**
+		 * @return The phases of the requests of this hop.
+		 */
+		public Timing getTiming() {
+			return timing;
+		}
+
+		@Override
+		public String toString() {
+			return method + " " + uri + " " + statusCode + " ("
+					+ (durationNanos / 1000000) + "ms; " + timing + ")";
+		}
+	}
+
+	/**
+	 * The phases of one or more requests. All durations are measured with
+	 * the monotonic {@link System#nanoTime()} clock. Phases which were not
+	 * observed are -1, e.g. no connection was opened because a pooled one
+	 * was reused.
+	 */
+	public final static class Timing {
+
+		/** The timing of requests which were not timed. */
+		public static final Timing UNKNOWN = new Timing(-1, -1, false, -1, -1,
+				-1, -1, -1);
+
+		private final long startNanos;
+		private final long totalNanos;
+		private final boolean isConnectionReused;
+		private final long dnsNanos;
+		private final long connectNanos;
+		private final long tlsNanos;
+		private final long connectionNanos;
+		private final long timeToFirstByteNanos;
+
+		Timing(long startNanos, long totalNanos, boolean isConnectionReused,
+				long dnsNanos, long connectNanos, long tlsNanos,
+				long connectionNanos, long timeToFirstByteNanos) {
+			this.startNanos = startNanos;
+			this.totalNanos = totalNanos;
+			this.isConnectionReused = isConnectionReused;
+			this.dnsNanos = dnsNanos;
+			this.connectNanos = connectNanos;
+			this.tlsNanos = tlsNanos;
+			this.connectionNanos = connectionNanos;
+			this.timeToFirstByteNanos = timeToFirstByteNanos;
+		}
+
+		/**
+		 * Sums up the phases of all hops.
+		 */
+		static Timing sum(List<Hop> hops) {
+			if (hops.isEmpty()) {
+				return UNKNOWN;
+			}
+			long totalNanos = 0;
+			boolean isConnectionReused = true;
+			long dnsNanos = -1;
+			long connectNanos = -1;
+			long tlsNanos = -1;
+			long connectionNanos = -1;
+			long timeToFirstByteNanos = -1;
+			for (Hop hop : hops) {
+				Timing timing = hop.getTiming();
+				totalNanos += hop.getDurationNanos();
+				isConnectionReused &= timing.isConnectionReused;
+				dnsNanos = add(dnsNanos, timing.dnsNanos);
+				connectNanos = add(connectNanos, timing.connectNanos);
+				tlsNanos = add(tlsNanos, timing.tlsNanos);
+				connectionNanos = add(connectionNanos, timing.connectionNanos);
+				timeToFirstByteNanos = add(timeToFirstByteNanos,
+						timing.timeToFirstByteNanos);
+			}
+			return new Timing(hops.get(0).getTiming().startNanos, totalNanos,
+					isConnectionReused, dnsNanos, connectNanos, tlsNanos,
+					connectionNanos, timeToFirstByteNanos);
+		}
+
+		private static long add(long sum, long nanos) {
+			if (nanos == -1) {
+				return sum;
+			}
+			return sum == -1 ? nanos : sum + nanos;
+		}
+
+		/**
+		 * @return The {@link System#nanoTime()} at which the first request
+		 *         started.
+		 */
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		/**
+		 * @return The time from the start of the first request until the
+		 *         last response headers were received.
+		 */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * @return <code>true</code> if only pooled connections were used.
+		 */
+		public boolean isConnectionReused() {
+			return isConnectionReused;
+		}
+
+		/**
+		 * @return The time to resolve the host name, close to zero if it was
+		 *         cached.
+		 */
+		public long getDnsNanos() {
+			return dnsNanos;
+		}
+
+		/**
+		 * @return The time to open the TCP connection.
+		 */
+		public long getConnectNanos() {
+			return connectNanos;
+		}
+
+		/**
+		 * @return The time of the TLS handshake.
+		 */
+		public long getTlsNanos() {
+			return tlsNanos;
+		}
+
+		/**
+		 * @return The time until the connection was ready to send the
+		 *         request, including all of the above.
+		 */
+		public long getConnectionNanos() {
+			return connectionNanos;
+		}
+
+		/**
+		 * @return The time from sending the request until its response
+		 *         headers were received.
+		 */
+		public long getTimeToFirstByteNanos() {
+			return timeToFirstByteNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder stringRep = new StringBuilder();
+			if (isConnectionReused) {
+				stringRep.append("reused connection");
+			} else {
+				appendPhase(stringRep, "dns", dnsNanos);
+				appendPhase(stringRep, "connect", connectNanos);
+				appendPhase(stringRep, "tls", tlsNanos);
+			}
+			appendPhase(stringRep, "ttfb", timeToFirstByteNanos);
+			return stringRep.length() == 0 ? "not timed" : stringRep
+					.toString();
+		}
+
+		private static void appendPhase(StringBuilder stringRep, String name,
+				long nanos) {
+			if (nanos == -1) {
+				return;
+			}
+			if (stringRep.length() > 0) {
+				stringRep.append(", ");
+			}
+			stringRep.append(name).append(' ').append(nanos / 1000000)
+					.append("ms");
+		}
+	}
+
+	/**
+	 * The uris of a batch which are not looked up yet, queued per host. The
+	 * hosts take turns in the order of their first uri. Is used by a single
+	 * thread.
+	 */
+	private static final class BatchQueue {
+
+		private final Semaphore batchPermits;
+		private final Callback callback;
+		private final long queuedAt = System.nanoTime();
+		private final List<String> hostKeys = new ArrayList<String>();
+		private final Map<String, LinkedList<Uri>> queuedUris = new HashMap<String, LinkedList<Uri>>();
+		private int nextHost = 0;
+
+		BatchQueue(Collection<Uri> uris, Semaphore batchPermits,
+				Callback callback) {
+			this.batchPermits = batchPermits;
+			this.callback = callback;
+			for (Uri uri : new LinkedHashSet<Uri>(uris)) {
+				String hostKey = HostLimiter.getHostKey(uri);
+				LinkedList<Uri> hostUris = queuedUris.get(hostKey);
+				if (hostUris == null) {
+					hostUris = new LinkedList<Uri>();
+					queuedUris.put(hostKey, hostUris);
+					hostKeys.add(hostKey);
+				}
+				hostUris.add(uri);
+			}
+		}
+
+		boolean isEmpty() {
+			return hostKeys.isEmpty();
+		}
+
+		/**
+		 * Takes the next uri of the first host after the previous one which
+		 * may be looked up right now.
+		 *
+		 * @return The lookup of the uri or <code>null</code> if all hosts with
+		 *         queued uris are busy.
+		 */
+		BatchLookup poll() {
+			for (int i = 0; i < hostKeys.size(); i++) {
+				int index = (nextHost + i) % hostKeys.size();
+				String hostKey = hostKeys.get(index);
+				// Lookups against open circuits fail right away, they don't
+				// need a slot of the host.
+				boolean holdsHostPermit = !CIRCUITS.isRejecting(hostKey);
+				if (holdsHostPermit && !HOST_LIMITER.tryAcquire(hostKey)) {
+					continue;
+				}
+
+				LinkedList<Uri> hostUris = queuedUris.get(hostKey);
+				Uri uri = hostUris.removeFirst();
+				if (hostUris.isEmpty()) {
+					queuedUris.remove(hostKey);
+					hostKeys.remove(index);
+					nextHost = index;
+				} else {
+					nextHost = index + 1;
+				}
+				if (!hostKeys.isEmpty()) {
+					nextHost %= hostKeys.size();
+				}
+				STATS.recordBatchDelay(uri.getHost(), System.nanoTime()
+						- queuedAt);
+				return new BatchLookup(uri, holdsHostPermit ? hostKey : null,
+						batchPermits, callback);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A single lookup of a batch. Holds a permit of the batch and possibly
+	 * one of its host which are released when the lookup has finished or
+	 * when it is cancelled before it started.
+	 */
+	private static final class BatchLookup implements Callable<Result> {
+
+		final Uri uri;
+		final Cancellation cancellation = new Cancellation();
+		private final AtomicBoolean isStarted = new AtomicBoolean();
+		private final String permittedHostKey;
+		private final Semaphore batchPermits;
+		private final Callback callback;
+
+		/**
+		 * @param permittedHostKey
+		 *            The host whose permit is held or <code>null</code> if
+		 *            none is held.
+		 */
+		BatchLookup(Uri uri, String permittedHostKey, Semaphore batchPermits,
+				Callback callback) {
+			this.uri = uri;
+			this.permittedHostKey = permittedHostKey;
+			this.batchPermits = batchPermits;
+			this.callback = callback;
+		}
+
+		public Result call() {
+			if (!isStarted.compareAndSet(false, true)) {
+				// The permits were released by releaseIfNotStarted.
+				return new Result(ResultType.CANCELLED);
+			}
+			try {
+				Result result = deshortenAndRecord(uri,
+						Strategy.HEAD_THEN_GET, cancellation);
+				if (callback != null) {
+					callback.onResult(uri, result);
+				}
+				return result;
+			} finally {
+				releasePermits();
+			}
+		}
+
+		/**
+		 * Releases the permits of a cancelled lookup which never ran. A
+		 * lookup cancelled while it waits in the queue of the executor is
+		 * never called.
+		 */
+		void releaseIfNotStarted() {
+			if (isStarted.compareAndSet(false, true)) {
+				releasePermits();
+			}
+		}
+
+		private void releasePermits() {
+			if (permittedHostKey != null) {
+				HOST_LIMITER.release(permittedHostKey);
+			}
+			batchPermits.release();
+		}
+	}
+
+	/**
+	 * Creates named daemon threads so that background lookups never keep the
+	 * process alive.
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+
+		private final String name;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + " "
+					+ threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
@@ -21,7 +21,6 @@ package ch.lipsch.deshortener;
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -30,8 +29,11 @@ import android.widget.CheckBox;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
+import ch.lipsch.deshortener.Deshortener.Callback;
+import ch.lipsch.deshortener.Deshortener.ResolutionStore;
 import ch.lipsch.deshortener.Deshortener.Result;
 import ch.lipsch.deshortener.Deshortener.ResultType;
+import ch.lipsch.deshortener.Deshortener.Strategy;
 import ch.lipsch.deshortener.persistence.DbAdapter;
 
 /**
@@ -51,10 +53,15 @@ public final class DeshortenerActivity extends Activity {
 	private CheckBox trustDomainChkBox = null;
 	private DbAdapter dbAdapter = null;
 	private Intent startIntent = null;
+	private PendingResult pendingResult = null;
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		if (pendingResult != null) {
+			// Frees the connection of the lookup right away.
+			pendingResult.cancel(true);
+		}
 		dbAdapter.close();
 	}
 
@@ -138,8 +145,9 @@ public final class DeshortenerActivity extends Activity {
 
 		shortenedUrlTextView.setText(startIntent.getData().toString());
 
-		UnshortenUrlTask unshortenTask = new UnshortenUrlTask();
-		unshortenTask.execute(startIntent.getData());
+		deshorten(startIntent.getData());
+		// Helps if the link redirects to another shortener.
+		Deshortener.warmUp(false);
 
 		if (!isIntentTrusted(startIntent)) {
 			onCreateTrusted();
@@ -148,9 +156,20 @@ public final class DeshortenerActivity extends Activity {
 		}
 	}
 
+	private void deshorten(Uri unshortenedUri) {
+		boolean isUriTrusted = isIntentTrusted(startIntent);
+
+		progressBar.setVisibility(View.VISIBLE);
+		// Links resolved earlier open without network access. Otherwise
+		// joins a running lookup of the same link, e.g. the speculative
+		// lookup started by the MainActivity while the link was typed.
+		pendingResult = Deshortener.deshortenAsync(unshortenedUri,
+				Strategy.HEAD_THEN_GET, new StoredResolutions(),
+				new ResultPresenter(isUriTrusted));
+	}
+
 	private boolean isIntentTrusted(Intent intent) {
-		return dbAdapter.isDomainTrusted(intent.getData().getHost())
-				|| dbAdapter.isUriTrusted(intent.getData());
+		return dbAdapter.isTrusted(intent.getData());
 	}
 
 	private void switchWidgetsToStateDeshortened(boolean isTrusted,
@@ -185,44 +204,85 @@ public final class DeshortenerActivity extends Activity {
 		trustUrlChkBox.setVisibility(View.INVISIBLE);
 	}
 
-	private class UnshortenUrlTask extends AsyncTask<Uri, Void, Result> {
+	/**
+	 * Presents the result of a finished lookup. Successful results are
+	 * stored so that the link opens without network access next time. Is
+	 * called from a background thread.
+	 */
+	private final class ResultPresenter implements Callback {
 
-		private boolean isUriTrusted = false;
-		private Uri unshortenedUri = null;
+		private final boolean isUriTrusted;
 
-		@Override
-		protected void onPreExecute() {
-			super.onPreExecute();
-			progressBar.setVisibility(View.VISIBLE);
+		ResultPresenter(boolean isUriTrusted) {
+			this.isUriTrusted = isUriTrusted;
 		}
 
-		@Override
-		protected Result doInBackground(Uri... params) {
-			unshortenedUri = params[0];
-			isUriTrusted = isIntentTrusted(startIntent);
-			return Deshortener.deshorten(unshortenedUri);
+		public void onResult(final Uri unshortenedUri, final Result result) {
+			if (result.wasSuccessful() && result.getTimeToLiveMillis() > 0) {
+				storeResolution(unshortenedUri, result);
+			}
+
+			runOnUiThread(new Runnable() {
+				public void run() {
+					if (pendingResult == null || pendingResult.isCancelled()) {
+						// The activity was left meanwhile.
+						return;
+					}
+					presentResult(unshortenedUri, result, isUriTrusted);
+				}
+			});
 		}
 
-		@Override
-		protected void onPostExecute(Result result) {
-			if (result.wasSuccessful()) {
-				presentSaveToView(result.getDeshortenedUri(), isUriTrusted,
-						false);
+		private void storeResolution(Uri unshortenedUri, Result result) {
+			int status = result.getHops().get(0).getStatusCode();
+			try {
+				dbAdapter.addResolvedUri(unshortenedUri,
+						result.getDeshortenedUri(), status,
+						System.currentTimeMillis()
+								+ result.getTimeToLiveMillis());
+			} catch (IllegalStateException e) {
+				// The activity was destroyed and closed the database.
+			}
+		}
+	}
+
+	/**
+	 * Looks up links resolved earlier. Is called from a background thread as
+	 * the lookup writes to the database.
+	 */
+	private final class StoredResolutions implements ResolutionStore {
+
+		public Uri getResolvedUri(Uri shortUri) {
+			try {
+				return dbAdapter.getResolvedUri(shortUri);
+			} catch (IllegalStateException e) {
+				// The activity was destroyed and closed the database.
+				return null;
+			}
+		}
+	}
+
+	private void presentResult(Uri unshortenedUri, Result result,
+			boolean isUriTrusted) {
+		if (result.wasSuccessful()) {
+			presentSaveToView(result.getDeshortenedUri(), isUriTrusted, false);
+		} else {
+			if (result.getResultType().equals(ResultType.SHOWS_PREVIEW)) {
+				presentSaveToView(unshortenedUri, isUriTrusted, true);
 			} else {
-				if (result.getResultType().equals(ResultType.SHOWS_PREVIEW)) {
-					presentSaveToView(unshortenedUri, isUriTrusted, true);
-				} else {
-					presentError(result.getResultType().equals(
-							ResultType.NETWORK_ERROR));
-				}
+				presentError(result.getResultType());
 			}
 		}
 	}
 
-	private void presentError(boolean wasNetworkError) {
+	private void presentError(ResultType resultType) {
 		CharSequence errorMsg = null;
-		if (wasNetworkError) {
+		if (resultType.equals(ResultType.NETWORK_ERROR)) {
 			errorMsg = getText(R.string.networkError);
+		} else if (resultType.equals(ResultType.TIMEOUT)) {
+			errorMsg = getText(R.string.timeoutError);
+		} else if (resultType.equals(ResultType.HOST_UNAVAILABLE)) {
+			errorMsg = getText(R.string.hostUnavailable);
 		} else {
 			errorMsg = getText(R.string.unableToDeshorten);
 		}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+
+/**
+ * Statistics about the lookups of the {@link Deshortener}: counts by
+ * {@link ResultType}, the distribution of redirect chain lengths, the latency
+ * of whole lookups and of the requests to each host, how long requests waited
+ * for the rate limit of their host and how long batch lookups waited for a
+ * free slot. Recording neither locks nor allocates once a host is
+ * known. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+public final class DeshortenerStats {
+
+	/**
+	 * The maximum number of hosts with their own statistics. Requests to
+	 * further hosts are recorded under {@link #OTHER_HOSTS}.
+	 */
+	public static final int MAX_TRACKED_HOSTS = 100;
+
+	/** The name under which requests to untracked hosts are recorded. */
+	public static final String OTHER_HOSTS = "*";
+
+	/** Longer redirect chains are counted with this depth. */
+	public static final int MAX_TRACKED_DEPTH = Deshortener.DEFAULT_MAX_REDIRECTS;
+
+	private static final ResultType[] RESULT_TYPES = ResultType.values();
+
+	private final ResolutionCache cache;
+	private final SingleFlight inFlight;
+	private final AtomicLongArray resultCounts = new AtomicLongArray(
+			RESULT_TYPES.length);
+	private final AtomicLongArray depthCounts = new AtomicLongArray(
+			MAX_TRACKED_DEPTH + 1);
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+	private final ConcurrentMap<String, HostStats> hosts = new ConcurrentHashMap<String, HostStats>();
+
+	/** The statistics of {@link #OTHER_HOSTS}, always in {@link #hosts}. */
+	private final HostStats otherHosts = new HostStats();
+
+	DeshortenerStats(ResolutionCache cache, SingleFlight inFlight) {
+		this.cache = cache;
+		this.inFlight = inFlight;
+		hosts.put(OTHER_HOSTS, otherHosts);
+	}
+
+	/**
+	 * Records a finished lookup.
+	 *
+	 * @param result
+	 *            The result of the lookup.
+	 * @param nanos
+	 *            The time the whole lookup took.
+	 */
+	void recordLookup(Result result, long nanos) {
+		resultCounts.incrementAndGet(result.getResultType().ordinal());
+		lookupLatency.record(nanos);
+		if (result.wasSuccessful()) {
+			depthCounts.incrementAndGet(Math.min(result.getHops().size(),
+					MAX_TRACKED_DEPTH));
+		}
+	}
+
+	/**
+	 * Records a request to the host which delivered a response.
+	 */
+	void recordRequest(String host, long nanos) {
+		getHostStats(host).latency.record(nanos);
+	}
+
+	/**
+	 * Records a request to the host which failed without a response.
+	 */
+	void recordFailure(String host) {
+		getHostStats(host).failureCount.incrementAndGet();
+	}
+
+	/**
+	 * Records how long a request waited for the rate limit of the host or
+	 * for the end of a delay the host asked for.
+	 */
+	void recordQueueDelay(String host, long nanos) {
+		getHostStats(host).queueDelay.record(nanos);
+	}
+
+	/**
+	 * Records how long a batch lookup waited in its batch until it started.
+	 */
+	void recordBatchDelay(String host, long nanos) {
+		getHostStats(host).batchDelay.record(nanos);
+	}
+
+	/**
+	 * Records a response of the host which asked us to slow down.
+	 */
+	void recordThrottled(String host) {
+		getHostStats(host).throttledCount.incrementAndGet();
+	}
+
+	private HostStats getHostStats(String host) {
+		String key = host == null ? OTHER_HOSTS : host;
+		HostStats hostStats = hosts.get(key);
+		if (hostStats == null) {
+			// Untracked hosts once the map is full must not allocate.
+			if (hosts.size() >= MAX_TRACKED_HOSTS) {
+				return otherHosts;
+			}
+			HostStats newStats = new HostStats();
+			hostStats = hosts.putIfAbsent(key, newStats);
+			if (hostStats == null) {
+				hostStats = newStats;
+			}
+		}
+		return hostStats;
+	}
+
+	/**
+	 * Resets all statistics. Lookups finishing concurrently may be partially
+	 * recorded.
+	 */
+	public void reset() {
+		for (int i = 0; i < resultCounts.length(); i++) {
+			resultCounts.set(i, 0);
+		}
+		for (int i = 0; i < depthCounts.length(); i++) {
+			depthCounts.set(i, 0);
+		}
+		lookupLatency.reset();
+		hosts.clear();
+		otherHosts.reset();
+		hosts.put(OTHER_HOSTS, otherHosts);
+	}
+
+	/**
+	 * Takes a snapshot of the current statistics. Lookups finishing
+	 * concurrently may be partially included.
+	 *
+	 * @return The snapshot.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	private static final class HostStats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong failureCount = new AtomicLong();
+		final LatencyHistogram queueDelay = new LatencyHistogram();
+		final LatencyHistogram batchDelay = new LatencyHistogram();
+		final AtomicLong throttledCount = new AtomicLong();
+
+		void reset() {
+			latency.reset();
+			failureCount.set(0);
+			queueDelay.reset();
+			batchDelay.reset();
+			throttledCount.set(0);
+		}
+
+		boolean isEmpty() {
+			return LatencyHistogram.getTotal(latency.getCounts()) == 0
+					&& failureCount.get() == 0
+					&& LatencyHistogram.getTotal(queueDelay.getCounts()) == 0
+					&& LatencyHistogram.getTotal(batchDelay.getCounts()) == 0
+					&& throttledCount.get() == 0;
+		}
+	}
+
+	/**
+	 * An immutable copy of the statistics at one point in time.
+	 */
+	public static final class Snapshot {
+
+		private final long[] resultCounts = new long[RESULT_TYPES.length];
+		private final long[] depthCounts = new long[MAX_TRACKED_DEPTH + 1];
+		private final long[] lookupLatency;
+		private final Map<String, long[]> hostLatencies = new TreeMap<String, long[]>();
+		private final Map<String, Long> hostFailures = new TreeMap<String, Long>();
+		private final Map<String, long[]> hostQueueDelays = new TreeMap<String, long[]>();
+		private final Map<String, long[]> hostBatchDelays = new TreeMap<String, long[]>();
+		private final Map<String, Long> hostThrottles = new TreeMap<String, Long>();
+		private final long cacheHitCount;
+		private final long cacheMissCount;
+		private final long coalescedCount;
+
+		private Snapshot(DeshortenerStats stats) {
+			for (int i = 0; i < resultCounts.length; i++) {
+				resultCounts[i] = stats.resultCounts.get(i);
+			}
+			for (int i = 0; i < depthCounts.length; i++) {
+				depthCounts[i] = stats.depthCounts.get(i);
+			}
+			lookupLatency = stats.lookupLatency.getCounts();
+			for (Map.Entry<String, HostStats> host : stats.hosts.entrySet()) {
+				if (host.getValue() == stats.otherHosts
+						&& stats.otherHosts.isEmpty()) {
+					continue;
+				}
+				hostLatencies.put(host.getKey(), host.getValue().latency
+						.getCounts());
+				hostFailures.put(host.getKey(), Long.valueOf(host.getValue()
+						.failureCount.get()));
+				hostQueueDelays.put(host.getKey(), host.getValue().queueDelay
+						.getCounts());
+				hostBatchDelays.put(host.getKey(), host.getValue().batchDelay
+						.getCounts());
+				hostThrottles.put(host.getKey(), Long.valueOf(host.getValue()
+						.throttledCount.get()));
+			}
+			cacheHitCount = stats.cache.getHitCount();
+			cacheMissCount = stats.cache.getMissCount();
+			coalescedCount = stats.inFlight.getCoalescedCount();
+		}
+
+		/**
+		 * @return The number of lookups which ended with the result type.
+		 */
+		public long getResultCount(ResultType resultType) {
+			return resultCounts[resultType.ordinal()];
+		}
+
+		/**
+		 * @return The number of finished lookups.
+		 */
+		public long getLookupCount() {
+			return LatencyHistogram.getTotal(lookupLatency);
+		}
+
+		/**
+		 * @param depth
+		 *            The number of requests of a redirect chain.
+		 * @return The number of successful lookups with that many requests.
+		 *         Chains longer than {@link DeshortenerStats#MAX_TRACKED_DEPTH}
+		 *         are counted at the maximum depth.
+		 */
+		public long getDepthCount(int depth) {
+			if (depth < 0 || depth > MAX_TRACKED_DEPTH) {
+				return 0;
+			}
+			return depthCounts[depth];
+		}
+
+		/**
+		 * @param percentile
+		 *            Between 0 and 100.
+		 * @return The latency of whole lookups at the percentile in
+		 *         nanoseconds, accurate to 25%.
+		 */
+		public long getLookupLatencyNanos(double percentile) {
+			return LatencyHistogram.getPercentileNanos(lookupLatency,
+					percentile);
+		}
+
+		/**
+		 * @return The hosts requests were made to in alphabetical order.
+		 */
+		public Set<String> getHosts() {
+			return Collections.unmodifiableSet(hostLatencies.keySet());
+		}
+
+		/**
+		 * @return The number of requests to the host which delivered a
+		 *         response.
+		 */
+		public long getRequestCount(String host) {
+			long[] latency = hostLatencies.get(host);
+			return latency == null ? 0 : LatencyHistogram.getTotal(latency);
+		}
+
+		/**
+		 * @return The number of requests to the host which failed without a
+		 *         response.
+		 */
+		public long getFailureCount(String host) {
+			Long failures = hostFailures.get(host);
+			return failures == null ? 0 : failures.longValue();
+		}
+
+		/**
+		 * @param percentile
+		 *            Between 0 and 100.
+		 * @return The latency of requests to the host at the percentile in
+		 *         nanoseconds, accurate to 25%.
+		 */
+		public long getRequestLatencyNanos(String host, double percentile) {
+			long[] latency = hostLatencies.get(host);
+			return latency == null ? 0 : LatencyHistogram.getPercentileNanos(
+					latency, percentile);
+		}
+
+		/**
+		 * @param percentile
+		 *            Between 0 and 100.
+		 * @return How long requests to the host waited for its rate limit or
+		 *         the delay it asked for at the percentile in nanoseconds,
+		 *         accurate to 25%.
+		 */
+		public long getQueueDelayNanos(String host, double percentile) {
+			long[] queueDelay = hostQueueDelays.get(host);
+			return queueDelay == null ? 0 : LatencyHistogram
+					.getPercentileNanos(queueDelay, percentile);
+		}
+
+		/**
+		 * @param percentile
+		 *            Between 0 and 100.
+		 * @return How long batch lookups against the host waited in their
+		 *         batch at the percentile in nanoseconds, accurate to 25%.
+		 */
+		public long getBatchDelayNanos(String host, double percentile) {
+			long[] batchDelay = hostBatchDelays.get(host);
+			return batchDelay == null ? 0 : LatencyHistogram
+					.getPercentileNanos(batchDelay, percentile);
+		}
+
+		/**
+		 * @return The number of responses of the host which asked us to slow
+		 *         down.
+		 */
+		public long getThrottledCount(String host) {
+			Long throttles = hostThrottles.get(host);
+			return throttles == null ? 0 : throttles.longValue();
+		}
+
+		public long getCacheHitCount() {
+			return cacheHitCount;
+		}
+
+		public long getCacheMissCount() {
+			return cacheMissCount;
+		}
+
+		/**
+		 * @return The share of cache lookups which were hits, between 0 and
+		 *         1.
+		 */
+		public double getCacheHitRate() {
+			long total = cacheHitCount + cacheMissCount;
+			return total == 0 ? 0 : (double) cacheHitCount / total;
+		}
+
+		/**
+		 * @return The number of lookups answered by an equal concurrent
+		 *         lookup.
+		 */
+		public long getCoalescedCount() {
+			return coalescedCount;
+		}
+
+		/**
+		 * Writes the snapshot as text, one statistic per line. Latencies are
+		 * in milliseconds.
+		 */
+		public void export(Writer out) throws IOException {
+			out.write("lookups count=" + getLookupCount() + " "
+					+ formatPercentiles(lookupLatency) + "\n");
+			for (ResultType resultType : RESULT_TYPES) {
+				out.write("result " + resultType + " "
+						+ getResultCount(resultType) + "\n");
+			}
+			for (int depth = 0; depth <= MAX_TRACKED_DEPTH; depth++) {
+				if (depthCounts[depth] > 0) {
+					out.write("depth " + depth + " " + depthCounts[depth]
+							+ "\n");
+				}
+			}
+			for (Map.Entry<String, long[]> host : hostLatencies.entrySet()) {
+				out.write("host " + host.getKey() + " requests="
+						+ LatencyHistogram.getTotal(host.getValue())
+						+ " failures=" + getFailureCount(host.getKey()) + " "
+						+ formatPercentiles(host.getValue()) + "\n");
+			}
+			for (Map.Entry<String, long[]> host : hostQueueDelays.entrySet()) {
+				if (LatencyHistogram.getTotal(host.getValue()) > 0) {
+					out.write("queue " + host.getKey() + " throttled="
+							+ getThrottledCount(host.getKey()) + " "
+							+ formatPercentiles(host.getValue()) + "\n");
+				}
+			}
+			for (Map.Entry<String, long[]> host : hostBatchDelays.entrySet()) {
+				if (LatencyHistogram.getTotal(host.getValue()) > 0) {
+					out.write("batch " + host.getKey() + " "
+							+ formatPercentiles(host.getValue()) + "\n");
+				}
+			}
+			out.write("cache hits=" + cacheHitCount + " misses="
+					+ cacheMissCount + "\n");
+			out.write("coalesced " + coalescedCount + "\n");
+			out.flush();
+		}
+
+		private static String formatPercentiles(long[] latency) {
+			return "p50=" + toMillis(latency, 50) + " p95="
+					+ toMillis(latency, 95) + " p99=" + toMillis(latency, 99);
+		}
+
+		private static long toMillis(long[] latency, double percentile) {
+			return LatencyHistogram.getPercentileNanos(latency, percentile)
+					/ 1000000;
+		}
+	}
+}
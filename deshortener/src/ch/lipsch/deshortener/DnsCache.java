@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Caches the addresses of resolved host names. The platform resolver does
+ * not expose the time to live of DNS records, so entries expire after a
+ * fixed time to live which is shorter than the records of the common
+ * shorteners. Failed resolutions are not cached. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class DnsCache {
+
+	/** The default time to live of resolved addresses. */
+	static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+	/** The maximum number of cached host names. */
+	static final int MAX_ENTRIES = 256;
+
+	private final long ttlMillis;
+	private final ConcurrentMap<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * @param ttlMillis
+	 *            The time to live of resolved addresses.
+	 * @throws IllegalArgumentException
+	 *             If ttlMillis is smaller than 1.
+	 */
+	DnsCache(long ttlMillis) {
+		if (ttlMillis < 1) {
+			throw new IllegalArgumentException("ttlMillis must be at least 1");
+		}
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Delivers the addresses of the host, resolves it if it is not cached or
+	 * has expired.
+	 *
+	 * @param host
+	 *            The host name or address.
+	 * @return The addresses. Must not be modified.
+	 * @throws UnknownHostException
+	 *             If the host cannot be resolved.
+	 */
+	InetAddress[] resolve(String host) throws UnknownHostException {
+		if (host == null) {
+			throw new NullPointerException("host must not be null");
+		}
+		long now = SystemClock.elapsedRealtime();
+		CacheEntry entry = entries.get(host);
+		if (entry != null && entry.expiresAt > now) {
+			hitCount.incrementAndGet();
+			return entry.addresses;
+		}
+
+		missCount.incrementAndGet();
+		InetAddress[] addresses = InetAddress.getAllByName(host);
+		if (entries.size() >= MAX_ENTRIES) {
+			removeExpired(now);
+		}
+		if (entries.size() < MAX_ENTRIES || entry != null) {
+			entries.put(host, new CacheEntry(addresses, now + ttlMillis));
+		}
+		return addresses;
+	}
+
+	private void removeExpired(long now) {
+		Iterator<CacheEntry> entryIterator = entries.values().iterator();
+		while (entryIterator.hasNext()) {
+			if (entryIterator.next().expiresAt <= now) {
+				entryIterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached addresses.
+	 */
+	void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return The number of cached host names including expired ones.
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of resolutions answered from the cache.
+	 */
+	long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return The number of resolutions which asked the platform resolver.
+	 */
+	long getMissCount() {
+		return missCount.get();
+	}
+
+	private static final class CacheEntry {
+		final InetAddress[] addresses;
+		final long expiresAt;
+
+		CacheEntry(InetAddress[] addresses, long expiresAt) {
+			this.addresses = addresses;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
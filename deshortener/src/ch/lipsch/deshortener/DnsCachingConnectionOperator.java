@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Opens connections to the addresses delivered by a {@link DnsCache} instead
+ * of resolving the host name on every new connection. The addresses are
+ * tried in order until a connection succeeds. TLS is layered on top of a
+ * plain connection so that the handshake verifies the host name and not the
+ * address.
+ *
+ * @author Erwin Betschart
+ */
+final class DnsCachingConnectionOperator extends
+		DefaultClientConnectionOperator {
+
+	private final DnsCache dnsCache;
+	private final SocketFactory plainFactory = new TimingSocketFactory();
+
+	DnsCachingConnectionOperator(SchemeRegistry schemeRegistry,
+			DnsCache dnsCache) {
+		super(schemeRegistry);
+		this.dnsCache = dnsCache;
+	}
+
+	@Override
+	public void openConnection(OperatedClientConnection conn,
+			HttpHost target, InetAddress local, HttpContext context,
+			HttpParams params) throws IOException {
+		if (conn == null || target == null || params == null) {
+			throw new IllegalArgumentException(
+					"conn, target and params must not be null");
+		}
+		if (conn.isOpen()) {
+			throw new IllegalArgumentException("conn must not be open");
+		}
+
+		Scheme scheme = schemeRegistry.getScheme(target.getSchemeName());
+		SocketFactory socketFactory = scheme.getSocketFactory();
+		LayeredSocketFactory layeredFactory = null;
+		SocketFactory connectFactory = socketFactory;
+		if (socketFactory instanceof LayeredSocketFactory) {
+			layeredFactory = (LayeredSocketFactory) socketFactory;
+			connectFactory = plainFactory;
+		}
+		int port = scheme.resolvePort(target.getPort());
+
+		PhaseTimer.markDnsStart();
+		InetAddress[] addresses = dnsCache.resolve(target.getHostName());
+		PhaseTimer.markDnsEnd();
+
+		for (int i = 0; i < addresses.length; i++) {
+			boolean isLastAddress = i == addresses.length - 1;
+			Socket socket = connectFactory.createSocket();
+			conn.opening(socket, target);
+			boolean isOpened = false;
+			try {
+				Socket connectedSocket = connectFactory.connectSocket(socket,
+						addresses[i].getHostAddress(), port, local, 0, params);
+				if (connectedSocket != socket) {
+					socket = connectedSocket;
+					conn.opening(socket, target);
+				}
+				if (layeredFactory != null) {
+					socket = layeredFactory.createSocket(socket, target
+							.getHostName(), port, true);
+					conn.opening(socket, target);
+				}
+				prepareSocket(socket, context, params);
+				conn.openCompleted(socketFactory.isSecure(socket), params);
+				isOpened = true;
+				return;
+			} catch (ConnectException e) {
+				if (isLastAddress) {
+					throw new HttpHostConnectException(target, e);
+				}
+			} catch (SocketException e) {
+				// E.g. no route to this address, another one may work.
+				if (isLastAddress) {
+					throw e;
+				}
+			} catch (ConnectTimeoutException e) {
+				if (isLastAddress) {
+					throw e;
+				}
+			} finally {
+				if (!isOpened) {
+					closeQuietly(socket);
+				}
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing left to do
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.net.Uri;
+
+/**
+ * Caps the number of concurrent lookups and the rate of requests per host.
+ * Requests are spaced out by a token bucket which holds one second worth of
+ * requests, hosts which asked us to back off with <code>Retry-After</code>
+ * get no requests until that time has passed. Only hosts with own limits,
+ * running lookups or a pending back-off are tracked. This class is
+ * thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class HostLimiter {
+
+	/** Not defined by HttpStatus of Android's HttpClient. */
+	static final int SC_TOO_MANY_REQUESTS = 429;
+
+	/** How long to back off after a 429 without a Retry-After header. */
+	static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+	private final int maxConcurrentPerHost;
+
+	/** Guarded by this. */
+	private final Map<String, HostState> hosts = new HashMap<String, HostState>();
+	private int releaseCount = 0;
+
+	/**
+	 * @param maxConcurrentPerHost
+	 *            The maximum number of concurrent lookups per host without
+	 *            {@link #setLimits(String, int, double) own limits}.
+	 * @throws IllegalArgumentException
+	 *             If maxConcurrentPerHost is smaller than 1.
+	 */
+	HostLimiter(int maxConcurrentPerHost) {
+		if (maxConcurrentPerHost < 1) {
+			throw new IllegalArgumentException(
+					"maxConcurrentPerHost must be at least 1");
+		}
+		this.maxConcurrentPerHost = maxConcurrentPerHost;
+	}
+
+	/**
+	 * Sets the limits of a single host. Lookups already running are not
+	 * affected.
+	 *
+	 * @param hostKey
+	 *            The host key as delivered by {@link #getHostKey(Uri)}.
+	 * @param maxConcurrent
+	 *            The maximum number of concurrent lookups.
+	 * @param maxRequestsPerSecond
+	 *            The maximum request rate or 0 for no limit.
+	 * @throws IllegalArgumentException
+	 *             If maxConcurrent is smaller than 1 or maxRequestsPerSecond
+	 *             is negative.
+	 */
+	synchronized void setLimits(String hostKey, int maxConcurrent,
+			double maxRequestsPerSecond) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException(
+					"maxConcurrent must be at least 1");
+		}
+		if (maxRequestsPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"maxRequestsPerSecond must not be negative");
+		}
+		getHostState(hostKey).setLimits(maxConcurrent, maxRequestsPerSecond);
+	}
+
+	/**
+	 * Starts a lookup against the host if it has less than the maximum number
+	 * of lookups running. Every successful call must be followed by a call
+	 * to {@link #release(String)}.
+	 *
+	 * @return <code>false</code> if the host is busy.
+	 */
+	synchronized boolean tryAcquire(String hostKey) {
+		HostState hostState = getHostState(hostKey);
+		if (hostState.running >= hostState.maxConcurrent) {
+			return false;
+		}
+		hostState.running++;
+		return true;
+	}
+
+	/**
+	 * Marks a lookup against the host as finished and wakes up the threads
+	 * waiting in {@link #awaitRelease(int)}.
+	 */
+	synchronized void release(String hostKey) {
+		HostState hostState = hosts.get(hostKey);
+		hostState.running--;
+		forgetIfIdle(hostKey, hostState, System.nanoTime());
+		releaseCount++;
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of lookups released so far. Is passed to
+	 *         {@link #awaitRelease(int)}.
+	 */
+	synchronized int getReleaseCount() {
+		return releaseCount;
+	}
+
+	/**
+	 * Waits until a lookup of any host was released after
+	 * {@link #getReleaseCount()} delivered releaseCount.
+	 *
+	 * @throws InterruptedException
+	 *             If the waiting thread was interrupted.
+	 */
+	synchronized void awaitRelease(int releaseCount)
+			throws InterruptedException {
+		while (this.releaseCount == releaseCount) {
+			wait();
+		}
+	}
+
+	/**
+	 * Takes the slot for a request to the host if one is free right now.
+	 * Nothing is taken if the caller has to wait, it calls again once the
+	 * delivered time has passed.
+	 *
+	 * @return 0 if the request may be sent, else the number of nanoseconds
+	 *         until the next slot is free.
+	 */
+	synchronized long tryReserveRequest(String hostKey) {
+		HostState hostState = hosts.get(hostKey);
+		if (hostState == null) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		long delayNanos = hostState.tryReserve(now);
+		forgetIfIdle(hostKey, hostState, now);
+		return delayNanos;
+	}
+
+	/**
+	 * Holds back all requests to the host until the delay has passed.
+	 */
+	synchronized void retryAfter(String hostKey, long delayMillis) {
+		getHostState(hostKey).block(
+				System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(delayMillis));
+	}
+
+	/**
+	 * Forgets all delays requested by hosts. The limits are kept.
+	 */
+	synchronized void reset() {
+		long now = System.nanoTime();
+		Iterator<HostState> hostStates = hosts.values().iterator();
+		while (hostStates.hasNext()) {
+			HostState hostState = hostStates.next();
+			hostState.unblock(now);
+			if (hostState.isIdle(now)) {
+				hostStates.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of hosts which are tracked at the moment.
+	 */
+	synchronized int getTrackedHostCount() {
+		return hosts.size();
+	}
+
+	/**
+	 * Must be called while holding the lock of this limiter.
+	 */
+	private HostState getHostState(String hostKey) {
+		HostState hostState = hosts.get(hostKey);
+		if (hostState == null) {
+			hostState = new HostState(maxConcurrentPerHost);
+			hosts.put(hostKey, hostState);
+		}
+		return hostState;
+	}
+
+	/**
+	 * Must be called while holding the lock of this limiter.
+	 */
+	private void forgetIfIdle(String hostKey, HostState hostState, long now) {
+		if (hostState.isIdle(now)) {
+			hosts.remove(hostKey);
+		}
+	}
+
+	/**
+	 * Delivers the key identifying the host of an uri. Explicit ports are
+	 * part of the key, two servers on the same machine are different hosts.
+	 */
+	static String getHostKey(Uri uri) {
+		String host = String.valueOf(uri.getHost()).toLowerCase();
+		int port = uri.getPort();
+		return port == -1 ? host : host + ":" + port;
+	}
+
+	/**
+	 * Delivers how long the host asked us to wait before sending the next
+	 * request. Only 429 and 503 responses do so.
+	 *
+	 * @return The delay in milliseconds or -1 if the response does not ask
+	 *         for a delay.
+	 */
+	static long getRetryAfterMillis(HttpResponse response) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode != SC_TOO_MANY_REQUESTS
+				&& statusCode != HttpStatus.SC_SERVICE_UNAVAILABLE) {
+			return -1;
+		}
+		long delayMillis = parseRetryAfter(response);
+		if (delayMillis == -1 && statusCode == SC_TOO_MANY_REQUESTS) {
+			return DEFAULT_RETRY_AFTER_MILLIS;
+		}
+		return delayMillis;
+	}
+
+	private static long parseRetryAfter(HttpResponse response) {
+		Header retryAfter = response.getFirstHeader("Retry-After");
+		if (retryAfter == null) {
+			return -1;
+		}
+		String value = retryAfter.getValue().trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			// Not delta seconds, try a date
+		}
+		try {
+			Date retryDate = DateUtils.parseDate(value);
+			Header dateHeader = response.getFirstHeader("Date");
+			Date now = dateHeader != null ? DateUtils.parseDate(dateHeader
+					.getValue()) : new Date();
+			return Math.max(0, retryDate.getTime() - now.getTime());
+		} catch (DateParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The limits and the state of a single host. Access must hold the lock of
+	 * the limiter.
+	 */
+	private static final class HostState {
+
+		int maxConcurrent;
+		int running = 0;
+
+		/** Set once the host got own limits, it is tracked for good then. */
+		private boolean hasOwnLimits = false;
+
+		/** The time between two requests at the maximum rate. */
+		private long intervalNanos = 0;
+
+		/** How far requests may be sent ahead of the maximum rate. */
+		private long burstNanos = 0;
+
+		/** When the next request is due if the host is used at full rate. */
+		private long nextRequestNanos;
+
+		private long blockedUntilNanos;
+
+		HostState(int maxConcurrent) {
+			this.maxConcurrent = maxConcurrent;
+			nextRequestNanos = System.nanoTime();
+			blockedUntilNanos = nextRequestNanos;
+		}
+
+		void setLimits(int maxConcurrent, double maxRequestsPerSecond) {
+			this.maxConcurrent = maxConcurrent;
+			hasOwnLimits = true;
+			if (maxRequestsPerSecond == 0) {
+				intervalNanos = 0;
+				burstNanos = 0;
+			} else {
+				intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1)
+						/ maxRequestsPerSecond);
+				long burst = Math.max(1, Math.round(maxRequestsPerSecond));
+				burstNanos = (burst - 1) * intervalNanos;
+			}
+		}
+
+		long tryReserve(long now) {
+			long sendAt = Math.max(blockedUntilNanos, nextRequestNanos
+					- burstNanos);
+			if (sendAt > now) {
+				return sendAt - now;
+			}
+			nextRequestNanos = Math.max(nextRequestNanos, now)
+					+ intervalNanos;
+			return 0;
+		}
+
+		void block(long untilNanos) {
+			blockedUntilNanos = Math.max(blockedUntilNanos, untilNanos);
+		}
+
+		void unblock(long now) {
+			blockedUntilNanos = now;
+			nextRequestNanos = now;
+		}
+
+		boolean isIdle(long now) {
+			return !hasOwnLimits && running == 0 && blockedUntilNanos <= now;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with logarithmic buckets. Every power of two is
+ * split into {@value #SUB_BUCKETS} buckets, so percentiles are accurate to
+ * 25% over the whole range from microseconds to hours. Recording neither
+ * locks nor allocates. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class LatencyHistogram {
+
+	/** The number of buckets each power of two is split into. */
+	static final int SUB_BUCKETS = 4;
+
+	private static final int SUB_BUCKET_BITS = 2;
+
+	/** Latencies above 2^36us (about 19 hours) end up in the last bucket. */
+	private static final int MAX_EXPONENT = 36;
+
+	static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - 1)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds. Negative values are recorded as
+	 *            zero.
+	 */
+	void record(long nanos) {
+		counts.incrementAndGet(getBucket(nanos / 1000));
+	}
+
+	/**
+	 * @return A copy of the bucket counts.
+	 */
+	long[] getCounts() {
+		long[] copy = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy[i] = counts.get(i);
+		}
+		return copy;
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	static int getBucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) Math.max(0, micros);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		int bucket = SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS
+				+ subBucket;
+		return Math.min(bucket, BUCKET_COUNT - 1);
+	}
+
+	/**
+	 * @return The largest latency in microseconds which falls into the
+	 *         bucket.
+	 */
+	static long getUpperBoundMicros(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+
+	/**
+	 * @return The sum of the bucket counts.
+	 */
+	static long getTotal(long[] counts) {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Delivers a percentile of the recorded latencies.
+	 *
+	 * @param counts
+	 *            Bucket counts as delivered by {@link #getCounts()}.
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return The upper bound of the bucket holding the percentile in
+	 *         nanoseconds, zero if nothing was recorded.
+	 */
+	static long getPercentileNanos(long[] counts, double percentile) {
+		long total = getTotal(counts);
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank) {
+				return getUpperBoundMicros(bucket) * 1000;
+			}
+		}
+		return getUpperBoundMicros(counts.length - 1) * 1000;
+	}
+}
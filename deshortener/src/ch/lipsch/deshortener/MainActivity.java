@@ -27,6 +27,7 @@ import android.app.Dialog;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.LayoutInflater;
@@ -48,17 +49,51 @@ public class MainActivity extends Activity {
 
 	private static final int INFO_DIALOG = 0;
 
+	/** Speculative lookups start once the input was stable for this long. */
+	private static final long SPECULATION_DELAY_MILLIS = 500;
+
 	private Button clearTrustedButton = null;
 	private DbAdapter dbAdapter = null;
 	private Button deshortenButton = null;
 	private EditText shortendedUrlEditText = null;
+	private final Handler handler = new Handler();
+	private PendingResult speculativeLookup = null;
+
+	/**
+	 * Deshortens the entered link before the user asks for it. The lookup
+	 * started by the {@link DeshortenerActivity} joins it while it is running
+	 * and finds its result in the cache afterwards.
+	 */
+	private final Runnable startSpeculativeLookup = new Runnable() {
+		public void run() {
+			Uri uri = Uri.parse(shortendedUrlEditText.getText().toString());
+			if (speculativeLookup != null
+					&& uri.equals(speculativeLookup.getUri())) {
+				return;
+			}
+			cancelSpeculativeLookup();
+			// Don't send requests to hosts which are still being typed.
+			if (ShortenerRegistry.getDefault().isShortener(uri.getHost())) {
+				speculativeLookup = Deshortener.deshortenAsync(uri, null);
+			}
+		}
+	};
 
 	@Override
 	protected void onDestroy() {
+		handler.removeCallbacks(startSpeculativeLookup);
+		cancelSpeculativeLookup();
 		dbAdapter.close();
 		super.onDestroy();
 	}
 
+	private void cancelSpeculativeLookup() {
+		if (speculativeLookup != null) {
+			speculativeLookup.cancel(true);
+			speculativeLookup = null;
+		}
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
@@ -125,6 +160,9 @@ public class MainActivity extends Activity {
 		dbAdapter = new DbAdapter(this);
 		dbAdapter.open();
 
+		// The user is about to enter a link.
+		Deshortener.warmUp(true);
+
 		shortendedUrlEditText.addTextChangedListener(new TextWatcher() {
 
 			public void onTextChanged(CharSequence s, int start, int before,
@@ -139,13 +177,20 @@ public class MainActivity extends Activity {
 			}
 
 			public void afterTextChanged(Editable s) {
+				handler.removeCallbacks(startSpeculativeLookup);
+				String text = shortendedUrlEditText.getText().toString();
+				if (speculativeLookup != null
+						&& !text.equals(speculativeLookup.getUri().toString())) {
+					cancelSpeculativeLookup();
+				}
 				try {
-					URI uri = new URI(shortendedUrlEditText.getText()
-							.toString());
+					URI uri = new URI(text);
 					boolean hasHost = uri.getHost() != null
 							&& (!uri.getHost().equals(""));
 					if (hasHost) {
 						deshortenButton.setEnabled(true);
+						handler.postDelayed(startSpeculativeLookup,
+								SPECULATION_DELAY_MILLIS);
 					} else {
 						deshortenButton.setEnabled(false);
 					}
@@ -158,18 +203,16 @@ public class MainActivity extends Activity {
 		clearTrustedButton.setOnClickListener(new OnClickListener() {
 
 			public void onClick(View v) {
-				dbAdapter.removeAllDomains();
-				dbAdapter.removeAllUris();
-				Toast toast = Toast.makeText(MainActivity.this,
-						MainActivity.this.getText(R.string.trustedCleared),
-						Toast.LENGTH_SHORT);
-				toast.show();
+				clearTrustedButton.setEnabled(false);
+				new Thread(new ClearTrusted(), "Clear trusted").start();
 			}
 		});
 
 		deshortenButton.setOnClickListener(new OnClickListener() {
 
 			public void onClick(View v) {
+				// The activity starts the lookup itself.
+				handler.removeCallbacks(startSpeculativeLookup);
 				Intent intent = new Intent();
 				intent.setClass(MainActivity.this, DeshortenerActivity.class);
 				intent.setData(Uri.parse(shortendedUrlEditText.getText()
@@ -180,4 +223,36 @@ public class MainActivity extends Activity {
 
 		shortendedUrlEditText.requestFocus();
 	}
+
+	/**
+	 * Clears the trusted domains and uris in the background and compacts the
+	 * database afterwards.
+	 */
+	private final class ClearTrusted implements Runnable {
+
+		public void run() {
+			try {
+				dbAdapter.removeAllTrusted();
+			} catch (IllegalStateException e) {
+				// The activity was destroyed and closed the database.
+				return;
+			}
+
+			runOnUiThread(new Runnable() {
+				public void run() {
+					clearTrustedButton.setEnabled(true);
+					Toast toast = Toast.makeText(MainActivity.this,
+							MainActivity.this.getText(R.string.trustedCleared),
+							Toast.LENGTH_SHORT);
+					toast.show();
+				}
+			});
+
+			try {
+				dbAdapter.compact();
+			} catch (IllegalStateException e) {
+				// The activity was destroyed and closed the database.
+			}
+		}
+	}
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import android.util.Log;
+import ch.lipsch.deshortener.Deshortener.Callback;
+import ch.lipsch.deshortener.Deshortener.Result;
+
+/**
+ * The result of a lookup running in the background. Cancelling it aborts the
+ * http request in flight so that the connection is freed right away. The
+ * callback is not notified about cancelled lookups.
+ *
+ * @author Erwin Betschart
+ * @see Deshortener#deshortenAsync(Uri, Callback)
+ */
+public final class PendingResult extends FutureTask<Result> {
+
+	private static final String LOG_TAG = PendingResult.class.getName();
+
+	private final Uri uri;
+	private final Cancellation cancellation;
+	private final Callback callback;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	PendingResult(Uri uri, Callable<Result> lookup, Cancellation cancellation,
+			Callback callback) {
+		super(lookup);
+		this.uri = uri;
+		this.cancellation = cancellation;
+		this.callback = callback;
+	}
+
+	/**
+	 * @return The uri which is deshortened.
+	 */
+	public Uri getUri() {
+		return uri;
+	}
+
+	@Override
+	public void run() {
+		try {
+			super.run();
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean wasCancelled = super.cancel(mayInterruptIfRunning);
+		if (wasCancelled) {
+			cancellation.cancel();
+		}
+		return wasCancelled;
+	}
+
+	@Override
+	protected void done() {
+		if (callback == null || isCancelled()) {
+			return;
+		}
+		try {
+			callback.onResult(uri, get());
+		} catch (InterruptedException e) {
+			// Cannot happen, the result is available when done is called.
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(LOG_TAG, "Lookup failed: " + uri, e.getCause());
+		}
+	}
+
+	/**
+	 * Waits until the lookup has stopped working. Unlike {@link #get()} this
+	 * also waits for cancelled lookups.
+	 *
+	 * @return <code>true</code> if the lookup stopped within the timeout.
+	 */
+	boolean awaitFinished(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return finished.await(timeout, unit);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpContext;
+
+import ch.lipsch.deshortener.Deshortener.Timing;
+
+/**
+ * Collects the timestamps of the phases of the requests of a single hop. The
+ * http client runs requests on the calling thread, so the timer of the
+ * current hop is kept in a thread local where the socket factories and
+ * interceptors of the {@link SharedHttpClient} find it. Requests made while
+ * no timer is started are not timed.
+ *
+ * @author Erwin Betschart
+ */
+final class PhaseTimer {
+
+	private static final ThreadLocal<PhaseTimer> CURRENT = new ThreadLocal<PhaseTimer>();
+
+	/** Marks the moment a request was about to be sent. */
+	static final HttpRequestInterceptor REQUEST_INTERCEPTOR = new HttpRequestInterceptor() {
+		public void process(HttpRequest request, HttpContext context)
+				throws HttpException, IOException {
+			PhaseTimer timer = CURRENT.get();
+			if (timer != null) {
+				timer.requestSentNanos = System.nanoTime();
+			}
+		}
+	};
+
+	/** Marks the moment the headers of a response were received. */
+	static final HttpResponseInterceptor RESPONSE_INTERCEPTOR = new HttpResponseInterceptor() {
+		public void process(HttpResponse response, HttpContext context)
+				throws HttpException, IOException {
+			PhaseTimer timer = CURRENT.get();
+			if (timer != null) {
+				timer.responseReceivedNanos = System.nanoTime();
+			}
+		}
+	};
+
+	private final long startNanos;
+	private long dnsStartNanos = -1;
+	private long dnsEndNanos = -1;
+	private long connectStartNanos = -1;
+	private long connectEndNanos = -1;
+	private long tlsStartNanos = -1;
+	private long tlsEndNanos = -1;
+	private long requestSentNanos = -1;
+	private long responseReceivedNanos = -1;
+
+	private PhaseTimer(long startNanos) {
+		this.startNanos = startNanos;
+	}
+
+	/**
+	 * Starts timing the requests of a hop made by the calling thread.
+	 *
+	 * @return The started timer.
+	 */
+	static PhaseTimer start() {
+		PhaseTimer timer = new PhaseTimer(System.nanoTime());
+		CURRENT.set(timer);
+		return timer;
+	}
+
+	/**
+	 * Stops timing requests made by the calling thread.
+	 */
+	static void stop() {
+		CURRENT.remove();
+	}
+
+	static void markDnsStart() {
+		PhaseTimer timer = CURRENT.get();
+		if (timer != null) {
+			timer.dnsStartNanos = System.nanoTime();
+		}
+	}
+
+	static void markDnsEnd() {
+		PhaseTimer timer = CURRENT.get();
+		if (timer != null) {
+			timer.dnsEndNanos = System.nanoTime();
+		}
+	}
+
+	static void markConnectStart() {
+		PhaseTimer timer = CURRENT.get();
+		if (timer != null) {
+			timer.connectStartNanos = System.nanoTime();
+		}
+	}
+
+	static void markConnectEnd() {
+		PhaseTimer timer = CURRENT.get();
+		if (timer != null) {
+			timer.connectEndNanos = System.nanoTime();
+		}
+	}
+
+	static void markTlsStart() {
+		PhaseTimer timer = CURRENT.get();
+		if (timer != null) {
+			timer.tlsStartNanos = System.nanoTime();
+		}
+	}
+
+	static void markTlsEnd() {
+		PhaseTimer timer = CURRENT.get();
+		if (timer != null) {
+			timer.tlsEndNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Delivers the phases recorded so far. Phases which were not observed,
+	 * e.g. because a pooled connection was reused, are -1.
+	 */
+	Timing getTiming() {
+		long endNanos = System.nanoTime();
+		boolean isConnectionReused = dnsStartNanos == -1
+				&& connectStartNanos == -1 && tlsStartNanos == -1;
+		return new Timing(startNanos, endNanos - startNanos,
+				isConnectionReused, between(dnsStartNanos, dnsEndNanos),
+				between(connectStartNanos, connectEndNanos), between(
+						tlsStartNanos, tlsEndNanos), between(startNanos,
+						requestSentNanos), between(requestSentNanos,
+						responseReceivedNanos));
+	}
+
+	private static long between(long startNanos, long endNanos) {
+		return startNanos == -1 || endNanos == -1 ? -1 : endNanos
+				- startNanos;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the target of html pages which redirect by a
+ * <code>&lt;meta http-equiv="refresh"&gt;</code> tag or by setting
+ * <code>location</code> in a <code>&lt;script&gt;</code> element. The page
+ * is scanned while it is read and reading stops as soon as the target is
+ * found. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class RefreshScanner {
+
+	/**
+	 * Matches may span chunks, this many already scanned characters are
+	 * scanned again together with the next chunk.
+	 */
+	private static final int MAX_MATCH_LENGTH = 1024;
+
+	private static final int CHUNK_SIZE = 2048;
+
+	private static final Pattern META_TAG = Pattern.compile("<meta\\b[^>]*>",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern REFRESH = Pattern.compile(
+			"http-equiv\\s*=\\s*[\"']?refresh", Pattern.CASE_INSENSITIVE);
+	private static final Pattern REFRESH_URL = Pattern.compile(
+			"content\\s*=\\s*[\"']?[^>]*?url\\s*=\\s*'?([^\"'\\s>]+)",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern SCRIPT_LOCATION = Pattern.compile(
+			"(?<![\\w.-])(?:window\\.|document\\.)?location"
+					+ "(?:(?:\\.href)?\\s*=\\s*[\"']([^\"']+)[\"']"
+					+ "|\\.replace\\(\\s*[\"']([^\"']+)[\"'])");
+
+	private RefreshScanner() {
+		// Only static methods
+	}
+
+	/**
+	 * Reads the page until the target is found or maxBytes were read.
+	 *
+	 * @param in
+	 *            The page. Is not closed.
+	 * @param maxBytes
+	 *            The maximum number of bytes to read.
+	 * @return The target as found in the page, may be relative, or
+	 *         <code>null</code> if there is none within maxBytes.
+	 * @throws IOException
+	 *             If reading fails.
+	 */
+	static String findTarget(InputStream in, int maxBytes) throws IOException {
+		StringBuilder page = new StringBuilder(Math.min(maxBytes,
+				4 * CHUNK_SIZE));
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int totalBytes = 0;
+		while (totalBytes < maxBytes) {
+			int read = in.read(chunk, 0,
+					Math.min(chunk.length, maxBytes - totalBytes));
+			if (read == -1) {
+				break;
+			}
+			int scanFrom = Math.max(0, page.length() - MAX_MATCH_LENGTH);
+			for (int i = 0; i < read; i++) {
+				// ISO-8859-1, the markup we look for is plain ASCII.
+				page.append((char) (chunk[i] & 0xff));
+			}
+			totalBytes += read;
+
+			String target = scan(page, scanFrom);
+			if (target != null) {
+				return target;
+			}
+		}
+		return null;
+	}
+
+	private static String scan(CharSequence page, int scanFrom) {
+		Matcher metaTag = META_TAG.matcher(page);
+		metaTag.region(scanFrom, page.length());
+		while (metaTag.find()) {
+			String tag = metaTag.group();
+			if (REFRESH.matcher(tag).find()) {
+				Matcher url = REFRESH_URL.matcher(tag);
+				if (url.find()) {
+					return decodeEntities(url.group(1));
+				}
+			}
+		}
+
+		Matcher location = SCRIPT_LOCATION.matcher(page);
+		location.region(scanFrom, page.length());
+		// Lets the look-behind see the characters before the region.
+		location.useTransparentBounds(true);
+		while (location.find()) {
+			if (isInScript(page, location.start())) {
+				String target = location.group(1) != null ? location
+						.group(1) : location.group(2);
+				return decodeEntities(target);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determines if the index lies within a <code>&lt;script&gt;</code>
+	 * element, i.e. if the closest script tag before it is an opening one.
+	 */
+	private static boolean isInScript(CharSequence page, int index) {
+		for (int i = index - 1; i >= 0; i--) {
+			if (page.charAt(i) != '<') {
+				continue;
+			}
+			if (isTag(page, i + 1, "script")) {
+				return true;
+			}
+			if (page.length() > i + 1 && page.charAt(i + 1) == '/'
+					&& isTag(page, i + 2, "script")) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isTag(CharSequence page, int start, String name) {
+		int end = start + name.length();
+		if (end >= page.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.toLowerCase(page.charAt(start + i)) != name
+					.charAt(i)) {
+				return false;
+			}
+		}
+		return !Character.isLetterOrDigit(page.charAt(end));
+	}
+
+	private static String decodeEntities(String value) {
+		return value.replace("&amp;", "&").replace("\\/", "/");
+	}
+}
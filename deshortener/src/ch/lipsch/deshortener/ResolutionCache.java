@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import ch.lipsch.deshortener.Deshortener.Result;
+
+/**
+ * A bounded in-memory cache of successful deshortening results keyed by the
+ * shortened uri. When the cache is full the least recently used entry is
+ * evicted. Entries expire after a time to live derived from the redirect
+ * responses. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+public final class ResolutionCache {
+
+	/** The default maximum number of cached results. */
+	public static final int DEFAULT_CAPACITY = 200;
+
+	/** Time to live of results of permanent (301) redirects. */
+	public static final long PERMANENT_REDIRECT_TTL_MILLIS = 24 * 60 * 60 * 1000;
+
+	/** Time to live of results of temporary (302, 303, 307) redirects. */
+	public static final long TEMPORARY_REDIRECT_TTL_MILLIS = 5 * 60 * 1000;
+
+	private final int capacity;
+	private final Map<String, CacheEntry> entries;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity
+	 *            The maximum number of cached results.
+	 * @throws IllegalArgumentException
+	 *             If capacity is smaller than 1.
+	 */
+	public ResolutionCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		entries = new LinkedHashMap<String, CacheEntry>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CacheEntry> eldest) {
+				boolean isFull = size() > ResolutionCache.this.capacity;
+				if (isFull) {
+					evictionCount.incrementAndGet();
+				}
+				return isFull;
+			}
+		};
+	}
+
+	/**
+	 * Delivers the cached result for the provided shortened uri.
+	 *
+	 * @param shortenedUri
+	 *            The shortened uri.
+	 * @return The cached result or <code>null</code> if there is no result or
+	 *         it has expired.
+	 */
+	public synchronized Result get(Uri shortenedUri) {
+		Result result = peek(shortenedUri);
+		if (result == null) {
+			missCount.incrementAndGet();
+		} else {
+			hitCount.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Delivers the cached result like {@link #get(Uri)} but without counting
+	 * a hit or miss. Is used to check again for a lookup which already
+	 * missed.
+	 *
+	 * @param shortenedUri
+	 *            The shortened uri.
+	 * @return The cached result or <code>null</code> if there is no result or
+	 *         it has expired.
+	 */
+	synchronized Result peek(Uri shortenedUri) {
+		String key = shortenedUri.toString();
+		CacheEntry entry = entries.get(key);
+		if (entry != null
+				&& entry.expiresAt <= SystemClock.elapsedRealtime()) {
+			entries.remove(key);
+			entry = null;
+		}
+		return entry == null ? null : entry.result;
+	}
+
+	/**
+	 * Caches a successful result.
+	 *
+	 * @param shortenedUri
+	 *            The shortened uri.
+	 * @param result
+	 *            The successful result.
+	 * @param ttlMillis
+	 *            The time to live of the result. Results with a time to live
+	 *            of zero or less are not cached.
+	 * @throws IllegalArgumentException
+	 *             If the result was not successful.
+	 */
+	public synchronized void put(Uri shortenedUri, Result result,
+			long ttlMillis) {
+		if (!result.wasSuccessful()) {
+			throw new IllegalArgumentException("result must be successful");
+		}
+		if (ttlMillis <= 0) {
+			return;
+		}
+		entries.put(shortenedUri.toString(), new CacheEntry(result,
+				SystemClock.elapsedRealtime() + ttlMillis));
+	}
+
+	/**
+	 * Removes all cached results. The statistics are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return The number of cached results including expired ones which were
+	 *         not requested since they expired.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of lookups which were answered from the cache.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return The number of lookups which were not answered from the cache.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return The number of results which were removed to make space for
+	 *         newer ones.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Determines how long the target of a redirect response may be cached.
+	 * <code>Cache-Control</code> and <code>Expires</code> headers take
+	 * precedence over the defaults for permanent and temporary redirects.
+	 *
+	 * @param response
+	 *            A redirect response.
+	 * @return The time to live in milliseconds, zero if the response must not
+	 *         be cached.
+	 */
+	static long computeTtl(HttpResponse response) {
+		for (Header header : response.getHeaders("Cache-Control")) {
+			for (HeaderElement element : header.getElements()) {
+				String name = element.getName();
+				if ("no-store".equalsIgnoreCase(name)
+						|| "no-cache".equalsIgnoreCase(name)) {
+					return 0;
+				}
+				if ("max-age".equalsIgnoreCase(name)
+						&& element.getValue() != null) {
+					try {
+						return Math.max(0,
+								Long.parseLong(element.getValue()) * 1000);
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+		}
+
+		Header expires = response.getFirstHeader("Expires");
+		if (expires != null) {
+			try {
+				Date expiresDate = DateUtils.parseDate(expires.getValue());
+				Header dateHeader = response.getFirstHeader("Date");
+				Date now = dateHeader != null ? DateUtils.parseDate(dateHeader
+						.getValue()) : new Date();
+				return Math.max(0, expiresDate.getTime() - now.getTime());
+			} catch (DateParseException e) {
+				// Invalid dates mean already expired.
+				return 0;
+			}
+		}
+
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_MOVED_PERMANENTLY) {
+			return PERMANENT_REDIRECT_TTL_MILLIS;
+		}
+		return TEMPORARY_REDIRECT_TTL_MILLIS;
+	}
+
+	private static final class CacheEntry {
+		private final Result result;
+		private final long expiresAt;
+
+		CacheEntry(Result result, long expiresAt) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+import android.util.Log;
+
+/**
+ * Holds the one long-lived {@link HttpClient} used by the {@link Deshortener}.
+ * The client is created lazily on first use and keeps its connections alive
+ * in a thread-safe pool so that consecutive lookups against the same
+ * shortener don't pay for a new connection every time. Idle connections are
+ * closed by a background daemon thread.
+ *
+ * @author Erwin Betschart
+ */
+final class SharedHttpClient {
+
+	/** Maximum number of pooled connections to a single host. */
+	static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+	/** Maximum number of pooled connections overall. */
+	static final int MAX_CONNECTIONS_TOTAL = 20;
+
+	/** Connections which were idle for longer than this are closed. */
+	static final long IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+	/** Maximum time to wait for a free connection of the pool. */
+	static final long POOL_TIMEOUT_MILLIS = 5 * 1000;
+
+	private static final long EVICTION_INTERVAL_MILLIS = 10 * 1000;
+
+	private static final String LOG_TAG = SharedHttpClient.class.getName();
+
+	/** Outlives the client, resolved hosts stay cached across shutdowns. */
+	private static final DnsCache DNS_CACHE = new DnsCache(
+			DnsCache.DEFAULT_TTL_MILLIS);
+
+	/** Access must be synchronized with the {@link SharedHttpClient} class. */
+	private static DefaultHttpClient client = null;
+
+	/** Access must be synchronized with the {@link SharedHttpClient} class. */
+	private static IdleConnectionEvictor evictor = null;
+
+	/** Access must be synchronized with the {@link SharedHttpClient} class. */
+	private static HttpHost proxy = null;
+
+	private SharedHttpClient() {
+		// Static access only.
+	}
+
+	/**
+	 * Delivers the shared client. Creates it if it was never created or was
+	 * shut down in the meantime.
+	 *
+	 * @return The shared client.
+	 */
+	static synchronized HttpClient get() {
+		if (client == null) {
+			client = createClient();
+			evictor = new IdleConnectionEvictor(client.getConnectionManager());
+			evictor.start();
+		}
+		return client;
+	}
+
+	/**
+	 * Closes all connections which are currently not in use. Connections which
+	 * are leased at the moment are not affected.
+	 */
+	static synchronized void closeIdleConnections() {
+		if (client != null) {
+			client.getConnectionManager().closeIdleConnections(0,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return The cache of resolved host names used by the shared client.
+	 */
+	static DnsCache getDnsCache() {
+		return DNS_CACHE;
+	}
+
+	/**
+	 * Opens a connection to the host and puts it into the pool, so that the
+	 * next request to the host does not have to wait for the connection. Does
+	 * nothing if the pool already holds a connection to the host or
+	 * requests are routed through a proxy.
+	 *
+	 * @param target
+	 *            The host to connect to. Its port must be -1 for the default
+	 *            port, like the target of requests with such uris.
+	 * @throws IOException
+	 *             If the connection could not be opened.
+	 * @throws InterruptedException
+	 *             If the calling thread was interrupted while waiting for a
+	 *             free connection of the pool.
+	 */
+	static void preconnect(HttpHost target) throws IOException,
+			InterruptedException {
+		DefaultHttpClient currentClient;
+		synchronized (SharedHttpClient.class) {
+			if (proxy != null) {
+				return;
+			}
+			currentClient = (DefaultHttpClient) get();
+		}
+
+		ClientConnectionManager connectionManager = currentClient
+				.getConnectionManager();
+		HttpRoute route = new HttpRoute(target, null, "https".equals(target
+				.getSchemeName()));
+		ManagedClientConnection connection;
+		try {
+			connection = connectionManager.requestConnection(route, null)
+					.getConnection(POOL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (ConnectionPoolTimeoutException e) {
+			Log.d(LOG_TAG, "No free connection to preconnect to " + target);
+			return;
+		}
+		try {
+			if (!connection.isOpen()) {
+				connection.open(route, new BasicHttpContext(), currentClient
+						.getParams());
+			}
+			connection.markReusable();
+		} finally {
+			connectionManager.releaseConnection(connection,
+					IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Routes all requests through the given HTTP proxy. Used by tests to
+	 * replay recorded shortener responses from a local server.
+	 *
+	 * @param proxy
+	 *            The proxy or <code>null</code> to connect directly.
+	 */
+	static synchronized void setProxy(HttpHost proxy) {
+		SharedHttpClient.proxy = proxy;
+		if (client != null) {
+			ConnRouteParams.setDefaultProxy(client.getParams(), proxy);
+		}
+	}
+
+	/**
+	 * Shuts the shared client down and closes all its connections. A later
+	 * call to {@link #get()} creates a new client.
+	 */
+	static synchronized void shutdown() {
+		if (client == null) {
+			return;
+		}
+
+		evictor.interrupt();
+		evictor = null;
+		client.getConnectionManager().shutdown();
+		client = null;
+	}
+
+	private static DefaultHttpClient createClient() {
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpClientParams.setRedirecting(params, false);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS_TOTAL);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MILLIS);
+		HttpConnectionParams.setConnectionTimeout(params,
+				Deshortener.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+		HttpConnectionParams.setSoTimeout(params,
+				Deshortener.DEFAULT_SOCKET_TIMEOUT_MILLIS);
+		if (proxy != null) {
+			ConnRouteParams.setDefaultProxy(params, proxy);
+		}
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", new TimingSocketFactory(),
+				80));
+		schemeRegistry.register(new Scheme("https",
+				new TimingSocketFactory.Secure(), 443));
+
+		ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(
+				params, schemeRegistry) {
+			@Override
+			protected ClientConnectionOperator createConnectionOperator(
+					SchemeRegistry schemeRegistry) {
+				// Called by the super constructor, must not use fields.
+				return new DnsCachingConnectionOperator(schemeRegistry,
+						DNS_CACHE);
+			}
+		};
+		DefaultHttpClient httpClient = new DefaultHttpClient(
+				connectionManager, params);
+		httpClient.addRequestInterceptor(PhaseTimer.REQUEST_INTERCEPTOR);
+		httpClient.addResponseInterceptor(PhaseTimer.RESPONSE_INTERCEPTOR);
+		return httpClient;
+	}
+
+	/**
+	 * Periodically closes expired connections and connections which were idle
+	 * for longer than {@link SharedHttpClient#IDLE_TIMEOUT_MILLIS}.
+	 */
+	private static final class IdleConnectionEvictor extends Thread {
+
+		private final ClientConnectionManager connectionManager;
+
+		IdleConnectionEvictor(ClientConnectionManager connectionManager) {
+			super("Deshortener connection evictor");
+			this.connectionManager = connectionManager;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					Thread.sleep(EVICTION_INTERVAL_MILLIS);
+					connectionManager.closeExpiredConnections();
+					connectionManager.closeIdleConnections(IDLE_TIMEOUT_MILLIS,
+							TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Log.d(LOG_TAG, "Connection evictor stopped");
+			}
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * The known url shorteners and their attributes. The default registry is
+ * loaded lazily from the bundled <code>shorteners.txt</code> into an
+ * immutable open addressing hash table. Lookups ignore case, match exact
+ * hosts and subdomains of suffix entries and don't allocate. This class is
+ * thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class ShortenerRegistry {
+
+	/** The shortener shows a preview page itself. */
+	static final int PREVIEW = 1;
+
+	/** The shortener answers HEAD requests like GET requests. */
+	static final int SUPPORTS_HEAD = 1 << 1;
+
+	/** The shortener only redirects GET requests. */
+	static final int NEEDS_GET = 1 << 2;
+
+	/** The shortener is used often and worth warming up. */
+	static final int POPULAR = 1 << 3;
+
+	/** Returned by {@link #getFlags(String)} for unknown hosts. */
+	static final int UNKNOWN = -1;
+
+	/** The entry also matches all subdomains of its host. */
+	private static final int SUFFIX = 1 << 4;
+
+	private static final String RESOURCE_NAME = "shorteners.txt";
+
+	private static final String LOG_TAG = ShortenerRegistry.class.getName();
+
+	private final String[] hosts;
+	private final int[] flags;
+	private final List<String> orderedHosts = new ArrayList<String>();
+	private final int mask;
+	private final int size;
+
+	private ShortenerRegistry(List<String> hostList, List<Integer> flagList) {
+		int capacity = 4;
+		while (capacity < 2 * hostList.size()) {
+			capacity <<= 1;
+		}
+		hosts = new String[capacity];
+		flags = new int[capacity];
+		mask = capacity - 1;
+		int count = 0;
+		for (int i = 0; i < hostList.size(); i++) {
+			String host = hostList.get(i);
+			int slot = find(host, 0, host.length(), false);
+			if (hosts[slot] == null) {
+				hosts[slot] = host;
+				orderedHosts.add(host);
+				count++;
+			}
+			flags[slot] |= flagList.get(i).intValue();
+		}
+		size = count;
+	}
+
+	/**
+	 * Delivers the registry loaded from the bundled shortener list.
+	 */
+	static ShortenerRegistry getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * Reads a shortener list. Every line is empty, a comment starting with
+	 * <code>#</code> or a host followed by its attributes separated by white
+	 * space. A host starting with <code>.</code> matches all of its
+	 * subdomains too.
+	 *
+	 * @param reader
+	 *            The list to read. Is not closed.
+	 * @throws IOException
+	 *             If reading fails.
+	 * @throws IllegalArgumentException
+	 *             If a line has an unknown attribute.
+	 */
+	static ShortenerRegistry load(Reader reader) throws IOException {
+		if (reader == null) {
+			throw new NullPointerException("reader must not be null");
+		}
+		BufferedReader lineReader = new BufferedReader(reader);
+		List<String> hostList = new ArrayList<String>();
+		List<Integer> flagList = new ArrayList<Integer>();
+		String line;
+		while ((line = lineReader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			String[] tokens = line.split("\\s+");
+			String host = tokens[0].toLowerCase();
+			int hostFlags = 0;
+			if (host.startsWith(".")) {
+				host = host.substring(1);
+				hostFlags |= SUFFIX;
+			}
+			for (int i = 1; i < tokens.length; i++) {
+				hostFlags |= parseAttribute(tokens[i]);
+			}
+			hostList.add(host);
+			flagList.add(Integer.valueOf(hostFlags));
+		}
+		return new ShortenerRegistry(hostList, flagList);
+	}
+
+	/**
+	 * Delivers the attributes of a host.
+	 *
+	 * @param host
+	 *            The host, may be <code>null</code>.
+	 * @return The attributes combined with or or {@link #UNKNOWN} if the host
+	 *         is not a known shortener.
+	 */
+	int getFlags(String host) {
+		if (host == null) {
+			return UNKNOWN;
+		}
+		int length = host.length();
+		int slot = find(host, 0, length, false);
+		if (hosts[slot] != null) {
+			return flags[slot] & ~SUFFIX;
+		}
+		for (int i = 0; i < length; i++) {
+			if (host.charAt(i) == '.') {
+				slot = find(host, i + 1, length, true);
+				if (hosts[slot] != null) {
+					return flags[slot] & ~SUFFIX;
+				}
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * @return <code>true</code> if the host is a known shortener.
+	 */
+	boolean isShortener(String host) {
+		return getFlags(host) != UNKNOWN;
+	}
+
+	/**
+	 * @return <code>true</code> if the host is a known shortener with the
+	 *         attribute.
+	 */
+	boolean hasFlag(String host, int flag) {
+		int hostFlags = getFlags(host);
+		return hostFlags != UNKNOWN && (hostFlags & flag) != 0;
+	}
+
+	/**
+	 * Delivers the hosts with the attribute in the order of the list.
+	 * Entries matching subdomains are left out, they don't name a host which
+	 * could be contacted.
+	 *
+	 * @param flag
+	 *            The attribute.
+	 * @return The matching hosts.
+	 */
+	List<String> getHosts(int flag) {
+		List<String> matchingHosts = new ArrayList<String>();
+		for (String host : orderedHosts) {
+			int hostFlags = flags[find(host, 0, host.length(), false)];
+			if ((hostFlags & SUFFIX) == 0 && (hostFlags & flag) != 0) {
+				matchingHosts.add(host);
+			}
+		}
+		return matchingHosts;
+	}
+
+	/**
+	 * @return The number of registered hosts.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the slot of the host between start and end.
+	 *
+	 * @param suffixOnly
+	 *            Only entries matching subdomains are taken into account.
+	 * @return The slot holding the host or the empty slot where it belongs.
+	 */
+	private int find(String host, int start, int end, boolean suffixOnly) {
+		int slot = hash(host, start, end) & mask;
+		while (hosts[slot] != null) {
+			String candidate = hosts[slot];
+			if (candidate.length() == end - start
+					&& candidate.regionMatches(true, 0, host, start, end
+							- start)
+					&& (!suffixOnly || (flags[slot] & SUFFIX) != 0)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(String host, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + Character.toLowerCase(host.charAt(i));
+		}
+		// Spreads the bits, the table size is a power of two.
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int parseAttribute(String attribute) {
+		if ("preview".equals(attribute)) {
+			return PREVIEW;
+		} else if ("head".equals(attribute)) {
+			return SUPPORTS_HEAD;
+		} else if ("get".equals(attribute)) {
+			return NEEDS_GET;
+		} else if ("popular".equals(attribute)) {
+			return POPULAR;
+		}
+		throw new IllegalArgumentException("Unknown attribute: " + attribute);
+	}
+
+	private static ShortenerRegistry loadDefault() {
+		List<String> noHosts = new ArrayList<String>();
+		InputStream in = ShortenerRegistry.class
+				.getResourceAsStream(RESOURCE_NAME);
+		if (in == null) {
+			Log.e(LOG_TAG, RESOURCE_NAME + " is missing");
+			return new ShortenerRegistry(noHosts, new ArrayList<Integer>());
+		}
+		try {
+			return load(new InputStreamReader(in, "UTF-8"));
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Unable to read " + RESOURCE_NAME, e);
+			return new ShortenerRegistry(noHosts, new ArrayList<Integer>());
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing left to do
+			}
+		}
+	}
+
+	/** Loads the default registry on first use. */
+	private static final class DefaultHolder {
+		static final ShortenerRegistry INSTANCE = loadDefault();
+	}
+}
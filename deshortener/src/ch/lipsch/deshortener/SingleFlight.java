@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+
+/**
+ * Coalesces concurrent lookups of the same key. The first caller runs the
+ * lookup on its own thread, every caller arriving while it is in flight
+ * waits for it and gets the very same result. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class SingleFlight {
+
+	/** How often waiting callers check if they were cancelled. */
+	private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(20);
+
+	private final ConcurrentMap<String, FutureTask<Result>> inFlight = new ConcurrentHashMap<String, FutureTask<Result>>();
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * Runs the lookup unless a lookup with the same key is in flight already,
+	 * then its result is delivered. If the lookup in flight gets cancelled by
+	 * its own caller, the waiting callers start over instead of getting a
+	 * {@link ResultType#CANCELLED} result they did not ask for.
+	 * <p>
+	 * The deadline of a lookup is only enforced by the caller running it. A
+	 * waiting caller therefore waits no longer than its own timeout and then
+	 * gets a {@link ResultType#TIMEOUT} result, even if the lookup in flight
+	 * is still running.
+	 *
+	 * @param key
+	 *            Identifies equal lookups.
+	 * @param lookup
+	 *            The lookup to run if none is in flight. It must observe the
+	 *            cancellation of the caller.
+	 * @param cancellation
+	 *            The cancellation of the caller.
+	 * @param timeoutNanos
+	 *            How long the caller waits for lookups in flight at most.
+	 */
+	Result execute(String key, Callable<Result> lookup,
+			Cancellation cancellation, long timeoutNanos) {
+		long deadlineNanos = System.nanoTime() + timeoutNanos;
+		while (true) {
+			FutureTask<Result> task = new FutureTask<Result>(lookup);
+			FutureTask<Result> running = inFlight.putIfAbsent(key, task);
+			if (running == null) {
+				try {
+					task.run();
+				} finally {
+					inFlight.remove(key, task);
+				}
+				return getResult(task);
+			}
+
+			Result result = await(running, cancellation, deadlineNanos);
+			if (result != null) {
+				coalescedCount.incrementAndGet();
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of lookups which were answered by a lookup in flight
+	 *         instead of sending requests on their own.
+	 */
+	long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * Waits for a lookup of another caller until the deadline passes.
+	 *
+	 * @return The result or <code>null</code> if the lookup must be started
+	 *         over.
+	 */
+	private static Result await(FutureTask<Result> running,
+			Cancellation cancellation, long deadlineNanos) {
+		while (!cancellation.isCancelled()) {
+			long remainingNanos = deadlineNanos - System.nanoTime();
+			if (remainingNanos <= 0) {
+				cancellation.timeOut();
+				break;
+			}
+			try {
+				Result result = running.get(Math.min(remainingNanos,
+						WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+				if (ResultType.CANCELLED.equals(result.getResultType())) {
+					return null;
+				}
+				return result;
+			} catch (TimeoutException e) {
+				// Check the cancellation and keep waiting.
+			} catch (ExecutionException e) {
+				// The lookup failed, start over to get the failure ourselves.
+				return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new Result(ResultType.CANCELLED);
+			}
+		}
+		return new Result(cancellation.isTimedOut() ? ResultType.TIMEOUT
+				: ResultType.CANCELLED);
+	}
+
+	private static Result getResult(FutureTask<Result> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			// Cannot happen, the task has already run.
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Socket factories which report the phases of opening a connection to the
+ * {@link PhaseTimer} of the current hop.
+ *
+ * @author Erwin Betschart
+ */
+final class TimingSocketFactory implements SocketFactory {
+
+	private final SocketFactory plainFactory = PlainSocketFactory
+			.getSocketFactory();
+
+	public Socket createSocket() throws IOException {
+		return plainFactory.createSocket();
+	}
+
+	public Socket connectSocket(Socket sock, String host, int port,
+			InetAddress localAddress, int localPort, HttpParams params)
+			throws IOException, UnknownHostException, ConnectTimeoutException {
+		PhaseTimer.markConnectStart();
+		Socket socket = plainFactory.connectSocket(sock, host, port,
+				localAddress, localPort, params);
+		PhaseTimer.markConnectEnd();
+		return socket;
+	}
+
+	public boolean isSecure(Socket sock) {
+		return false;
+	}
+
+	/**
+	 * Opens TLS connections. The TCP connection is opened first and the TLS
+	 * handshake is layered on top, so both phases can be timed.
+	 */
+	static final class Secure implements LayeredSocketFactory {
+
+		private final SocketFactory plainFactory = PlainSocketFactory
+				.getSocketFactory();
+		private final SSLSocketFactory sslFactory = SSLSocketFactory
+				.getSocketFactory();
+
+		public Socket createSocket() throws IOException {
+			return plainFactory.createSocket();
+		}
+
+		public Socket connectSocket(Socket sock, String host, int port,
+				InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException,
+				ConnectTimeoutException {
+			PhaseTimer.markConnectStart();
+			Socket plainSocket = plainFactory.connectSocket(sock, host, port,
+					localAddress, localPort, params);
+			PhaseTimer.markConnectEnd();
+			return createSocket(plainSocket, host, port, true);
+		}
+
+		public Socket createSocket(Socket socket, String host, int port,
+				boolean autoClose) throws IOException, UnknownHostException {
+			PhaseTimer.markTlsStart();
+			Socket sslSocket = sslFactory.createSocket(socket, host, port,
+					autoClose);
+			PhaseTimer.markTlsEnd();
+			return sslSocket;
+		}
+
+		public boolean isSecure(Socket sock) {
+			return sslFactory.isSecure(sock);
+		}
+	}
+}
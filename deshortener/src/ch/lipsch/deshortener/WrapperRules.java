@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import android.net.Uri;
+
+/**
+ * Unwraps links of redirect wrappers which carry their target in the query,
+ * e.g. <code>http://www.google.com/url?q=http://example.com</code>. No
+ * request is needed to deshorten them. This class is thread-safe.
+ *
+ * @author Erwin Betschart
+ */
+final class WrapperRules {
+
+	/** Wrappers nested deeper than this are not unwrapped any further. */
+	static final int MAX_NESTING = 5;
+
+	private static final Rule[] RULES = {
+			new Rule("google.com", "/url", "q", "url"),
+			new Rule("google.ch", "/url", "q", "url"),
+			new Rule("google.de", "/url", "q", "url"),
+			new Rule("google.co.uk", "/url", "q", "url"),
+			new Rule("facebook.com", "/l.php", "u"),
+			new Rule("youtube.com", "/redirect", "q"),
+			new Rule("l.instagram.com", "/", "u"),
+			new Rule("safelinks.protection.outlook.com", "/", "url"),
+			new Rule("steamcommunity.com", "/linkfilter/", "url"),
+			new Rule("vk.com", "/away.php", "to") };
+
+	private WrapperRules() {
+		// Only static methods
+	}
+
+	/**
+	 * Delivers the target of a wrapped link. Nested wrappers are unwrapped
+	 * up to {@link #MAX_NESTING} levels.
+	 *
+	 * @param uri
+	 *            The link to unwrap.
+	 * @return The innermost target or <code>null</code> if the link is not a
+	 *         known wrapper with a valid http or https target.
+	 */
+	static Uri unwrap(Uri uri) {
+		Uri target = null;
+		Uri current = uri;
+		for (int level = 0; level < MAX_NESTING; level++) {
+			Uri inner = unwrapOnce(current);
+			if (inner == null) {
+				break;
+			}
+			target = inner;
+			current = inner;
+		}
+		return target;
+	}
+
+	/**
+	 * @return <code>true</code> if the link points to a known wrapper, even
+	 *         if it carries no target which could be unwrapped.
+	 */
+	static boolean isWrapper(Uri uri) {
+		String host = uri.getHost();
+		String path = uri.getPath();
+		if (host == null || path == null || !isHttp(uri)) {
+			return false;
+		}
+		for (Rule rule : RULES) {
+			if (rule.matches(host, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Uri unwrapOnce(Uri uri) {
+		String host = uri.getHost();
+		String path = uri.getPath();
+		if (host == null || path == null || !isHttp(uri)) {
+			return null;
+		}
+		for (Rule rule : RULES) {
+			if (!rule.matches(host, path)) {
+				continue;
+			}
+			for (String parameter : rule.parameters) {
+				String value = uri.getQueryParameter(parameter);
+				if (value != null) {
+					Uri target = Uri.parse(value.trim());
+					if (isHttp(target) && target.getHost() != null) {
+						return target;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean isHttp(Uri uri) {
+		String scheme = uri.getScheme();
+		return "http".equalsIgnoreCase(scheme)
+				|| "https".equalsIgnoreCase(scheme);
+	}
+
+	/**
+	 * A wrapper served below a path on a host and its subdomains.
+	 */
+	private static final class Rule {
+
+		private final String host;
+		private final String pathPrefix;
+		private final String[] parameters;
+
+		Rule(String host, String pathPrefix, String... parameters) {
+			this.host = host;
+			this.pathPrefix = pathPrefix;
+			this.parameters = parameters;
+		}
+
+		boolean matches(String uriHost, String uriPath) {
+			int hostStart = uriHost.length() - host.length();
+			if (hostStart < 0
+					|| (hostStart > 0 && uriHost.charAt(hostStart - 1) != '.')) {
+				return false;
+			}
+			return uriHost.regionMatches(true, hostStart, host, 0, host
+					.length())
+					&& uriPath.startsWith(pathPrefix);
+		}
+	}
+}
@@ -21,6 +21,8 @@ package ch.lipsch.deshortener.persistence;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
 /**
  * The class is responsible for the database lifecycle of the Deshortener
@@ -30,10 +32,22 @@ import android.database.sqlite.SQLiteOpenHelper;
  * 
  */
 public final class DatabaseHelper extends SQLiteOpenHelper {
+	private static final String LOG_TAG = DatabaseHelper.class.getName();
 	protected static final String DATABASE_NAME = "deshortener";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 3;
 	private static final String CREATE_TABLE_TRUSTED_DOMAIN = "CREATE TABLE trustedDomain (domain TEXT)";
-	private static final String CREATE_TABLE_TRUSTED_URI = "CREATE TABLE trustedUri (uri TEST)";
+	private static final String CREATE_TABLE_TRUSTED_URI = "CREATE TABLE trustedUri (uri TEXT)";
+
+	/** Added in version 3. */
+	private static final String CREATE_INDEX_TRUSTED_DOMAIN = "CREATE UNIQUE INDEX trustedDomainIndex ON trustedDomain (domain)";
+
+	/** Added in version 3. */
+	private static final String CREATE_INDEX_TRUSTED_URI = "CREATE UNIQUE INDEX trustedUriIndex ON trustedUri (uri)";
+
+	/** Added in version 2. */
+	private static final String CREATE_TABLE_RESOLVED_URI = "CREATE TABLE resolvedUri ("
+			+ "shortUri TEXT PRIMARY KEY, finalUri TEXT NOT NULL, status INTEGER, "
+			+ "resolvedAt INTEGER, expiresAt INTEGER, lastAccess INTEGER)";
 
 	public DatabaseHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -43,10 +57,50 @@ public final class DatabaseHelper extends SQLiteOpenHelper {
 	public void onCreate(SQLiteDatabase db) {
 		db.execSQL(CREATE_TABLE_TRUSTED_DOMAIN);
 		db.execSQL(CREATE_TABLE_TRUSTED_URI);
+		db.execSQL(CREATE_INDEX_TRUSTED_DOMAIN);
+		db.execSQL(CREATE_INDEX_TRUSTED_URI);
+		db.execSQL(CREATE_TABLE_RESOLVED_URI);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// Nothing to do yet.
+		// Each step upgrades from its version to the next one, older
+		// databases pass through all of them.
+		if (oldVersion < 2) {
+			db.execSQL(CREATE_TABLE_RESOLVED_URI);
+		}
+		if (oldVersion < 3) {
+			// Trusting again used to insert duplicates.
+			db.execSQL("DELETE FROM trustedDomain WHERE rowid NOT IN "
+					+ "(SELECT MIN(rowid) FROM trustedDomain GROUP BY domain)");
+			db.execSQL(CREATE_INDEX_TRUSTED_DOMAIN);
+
+			// The column type of version 1 was misspelled, the table is
+			// recreated without duplicates.
+			db.execSQL("ALTER TABLE trustedUri RENAME TO trustedUriOld");
+			db.execSQL(CREATE_TABLE_TRUSTED_URI);
+			db.execSQL("INSERT INTO trustedUri (uri) "
+					+ "SELECT DISTINCT uri FROM trustedUriOld");
+			db.execSQL("DROP TABLE trustedUriOld");
+			db.execSQL(CREATE_INDEX_TRUSTED_URI);
+		}
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (db.isReadOnly() || Build.VERSION.SDK_INT < 11) {
+			return;
+		}
+		// With write-ahead logging Android opens further connections for
+		// reading, so queries don't wait for a write transaction anymore.
+		// Before Honeycomb all access goes through a single connection. The
+		// app is built against API level 4, hence the reflection.
+		try {
+			SQLiteDatabase.class.getMethod("enableWriteAheadLogging").invoke(
+					db);
+		} catch (Exception e) {
+			Log.w(LOG_TAG, "Unable to enable write-ahead logging", e);
+		}
 	}
 }
@@ -18,20 +18,31 @@
  */
 package ch.lipsch.deshortener.persistence;
 
-import java.text.MessageFormat;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
 /**
  * This class provides an easy access to the deshortener database. This class is
- * thread-safe.
- *
- * TODO: Synchronization could be done tighter.
+ * thread-safe. Trust checks are answered from memory and don't wait for
+ * writers. Other reads wait for a running write transaction unless the
+ * platform supports write-ahead logging, which is the case from Honeycomb on.
  *
  * @author Erwin Betschart
  */
@@ -41,18 +52,64 @@ public final class DbAdapter {
 	private static final String URI_TABLE = "trustedUri";
 	private static final String DOMAIN_KEY = "domain";
 	private static final String URI_KEY = "uri";
+	private static final String RESOLVED_URI_TABLE = "resolvedUri";
+	private static final String SHORT_URI_KEY = "shortUri";
+	private static final String FINAL_URI_KEY = "finalUri";
+	private static final String STATUS_KEY = "status";
+	private static final String RESOLVED_AT_KEY = "resolvedAt";
+	private static final String EXPIRES_AT_KEY = "expiresAt";
+	private static final String LAST_ACCESS_KEY = "lastAccess";
+
+	/** Line prefixes of the trust list format. */
+	private static final String DOMAIN_PREFIX = "domain ";
+	private static final String URI_PREFIX = "uri ";
+	private static final String COMMENT_PREFIX = "#";
+
+	/** The maximum number of stored resolved uris. */
+	static final int MAX_RESOLVED_URIS = 500;
+
+	/**
+	 * Trusted domains and uris are answered from memory as long as a table
+	 * holds at most this many rows. Larger tables are queried directly.
+	 */
+	static final int MAX_INDEXED_TRUSTED = 10000;
 
 	private DatabaseHelper dbHelper = null;
 	private Context context = null;
 	private SQLiteDatabase database = null;
+	private SQLiteStatement insertDomainStatement = null;
+	private SQLiteStatement insertUriStatement = null;
+	private SQLiteStatement domainTrustedStatement = null;
+	private SQLiteStatement uriTrustedStatement = null;
+	private SQLiteStatement trustedStatement = null;
+
+	/**
+	 * Guards the lifecycle of the database. Every access holds the read lock,
+	 * {@link #open()} and {@link #close()} hold the write lock.
+	 */
+	private final ReentrantReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Serializes writers. Readers never take it, but may still wait for the
+	 * database connection, see {@link DatabaseHelper#onOpen(SQLiteDatabase)}.
+	 */
+	private final ReentrantLock writerLock = new ReentrantLock();
 
 	/**
 	 * Is set to <code>true</code> when {@link #open()} is called and set to
-	 * <code>false</code> when {@link #close()} is called. Access must be
-	 * synchronized with {@link DbAdapter} instance.
+	 * <code>false</code> when {@link #close()} is called. Access must hold
+	 * the {@link #lifecycleLock}.
 	 */
 	private boolean isOpened = false;
 
+	/**
+	 * In-memory copies of the trusted domains and uris. Read without locking,
+	 * updated while holding the writer lock once a change is committed. <code>null</code> if the
+	 * adapter is closed or the table is too large to be held in memory.
+	 */
+	private volatile Map<String, Boolean> trustedDomainIndex = null;
+	private volatile Map<String, Boolean> trustedUriIndex = null;
+
 	public DbAdapter(Context context) {
 		if (context == null) {
 			throw new NullPointerException("context must not be null");
@@ -60,29 +117,68 @@ public final class DbAdapter {
 		this.context = context;
 	}
 
-	public synchronized DbAdapter open() {
+	public DbAdapter open() {
+		lifecycleLock.writeLock().lock();
+		try {
+			return openLocked();
+		} finally {
+			lifecycleLock.writeLock().unlock();
+		}
+	}
+
+	private DbAdapter openLocked() {
 		if (isOpened) {
 			return this;
 		}
 
 		dbHelper = new DatabaseHelper(context);
 		database = dbHelper.getWritableDatabase();
+		insertDomainStatement = database.compileStatement("INSERT OR IGNORE INTO "
+				+ DOMAIN_TABLE + " (" + DOMAIN_KEY + ") VALUES (?)");
+		insertUriStatement = database.compileStatement("INSERT OR IGNORE INTO "
+				+ URI_TABLE + " (" + URI_KEY + ") VALUES (?)");
+		domainTrustedStatement = database.compileStatement("SELECT "
+				+ createExistsClause(DOMAIN_TABLE, DOMAIN_KEY));
+		uriTrustedStatement = database.compileStatement("SELECT "
+				+ createExistsClause(URI_TABLE, URI_KEY));
+		trustedStatement = database.compileStatement("SELECT "
+				+ createExistsClause(DOMAIN_TABLE, DOMAIN_KEY) + " OR "
+				+ createExistsClause(URI_TABLE, URI_KEY));
+		trustedDomainIndex = loadIndex(DOMAIN_TABLE, DOMAIN_KEY);
+		trustedUriIndex = loadIndex(URI_TABLE, URI_KEY);
 		isOpened = true;
 
 		return this;
 	}
 
-	public synchronized void close() {
+	public void close() {
+		lifecycleLock.writeLock().lock();
+		try {
+			closeLocked();
+		} finally {
+			lifecycleLock.writeLock().unlock();
+		}
+	}
+
+	private void closeLocked() {
 		if (!isOpened) {
 			return;
 		}
 
+		trustedDomainIndex = null;
+		trustedUriIndex = null;
+		insertDomainStatement.close();
+		insertUriStatement.close();
+		domainTrustedStatement.close();
+		uriTrustedStatement.close();
+		trustedStatement.close();
 		dbHelper.close();
 		isOpened = false;
 	}
 
 	/**
-	 * Adds a new domain to the trusted domains.
+	 * Adds a new domain to the trusted domains. Domains which are trusted
+	 * already are ignored.
 	 *
 	 * @param domain
 	 *            The domain to trust. Provide just the hostname. E.g. goo.gl
@@ -93,19 +189,23 @@ public final class DbAdapter {
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized long addDomain(String domain)
+	public long addDomain(String domain)
 			throws NullPointerException, IllegalStateException {
 		if (domain == null) {
 			throw new NullPointerException("domain must not be null");
 		}
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
-		}
-
-		ContentValues initialValues = createSingleContentValues(DOMAIN_KEY,
-				domain);
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
 
-		return database.insert(DOMAIN_TABLE, null, initialValues);
+			long rowId = insertDomain(domain);
+			trustedDomainIndex = addToIndex(trustedDomainIndex, domain);
+			return rowId;
+		} finally {
+			releaseWrite();
+		}
 	}
 
 	/**
@@ -119,16 +219,22 @@ public final class DbAdapter {
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized boolean removeDomain(String domain)
+	public boolean removeDomain(String domain)
 			throws NullPointerException, IllegalStateException {
 		if (domain == null) {
 			throw new NullPointerException("domain must not be null");
 		}
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			boolean isRemoved = deleteDomain(domain);
+			removeFromIndex(trustedDomainIndex, domain);
+			return isRemoved;
+		} finally {
+			releaseWrite();
 		}
-		return (database.delete(DOMAIN_TABLE, DOMAIN_KEY + "= ?",
-				new String[] { domain })) > 0;
 	}
 
 	/**
@@ -137,16 +243,23 @@ public final class DbAdapter {
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized void removeAllDomains() throws IllegalStateException {
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
-		}
+	public void removeAllDomains() throws IllegalStateException {
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
 
-		database.delete(DOMAIN_TABLE, null, new String[0]);
+			database.delete(DOMAIN_TABLE, null, new String[0]);
+			trustedDomainIndex = new ConcurrentHashMap<String, Boolean>();
+		} finally {
+			releaseWrite();
+		}
 	}
 
 	/**
-	 * Adds a new uri to the trusted uris.
+	 * Adds a new uri to the trusted uris. Uris which are trusted already are
+	 * ignored.
 	 *
 	 * @param uri
 	 *            The uri to trust.
@@ -157,17 +270,21 @@ public final class DbAdapter {
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized long addUri(Uri uri) {
+	public long addUri(Uri uri) {
 		if (uri == null) {
 			throw new NullPointerException("uri must not be null");
 		}
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			long rowId = insertUri(uri.toString());
+			trustedUriIndex = addToIndex(trustedUriIndex, uri.toString());
+			return rowId;
+		} finally {
+			releaseWrite();
 		}
-		ContentValues initialValues = createSingleContentValues(URI_KEY,
-				uri.toString());
-
-		return database.insert(URI_TABLE, null, initialValues);
 	}
 
 	/**
@@ -181,15 +298,21 @@ public final class DbAdapter {
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized boolean removeUri(Uri uri) {
+	public boolean removeUri(Uri uri) {
 		if (uri == null) {
 			throw new NullPointerException("uri must not be null");
 		}
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			boolean isRemoved = deleteUri(uri.toString());
+			removeFromIndex(trustedUriIndex, uri.toString());
+			return isRemoved;
+		} finally {
+			releaseWrite();
 		}
-		return (database.delete(URI_TABLE, URI_KEY + "= ?",
-				new String[] { uri.toString() })) > 0;
 	}
 
 	/**
@@ -198,49 +321,442 @@ public final class DbAdapter {
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized void removeAllUris() throws IllegalStateException {
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
+	public void removeAllUris() throws IllegalStateException {
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+
+			database.delete(URI_TABLE, null, new String[0]);
+			trustedUriIndex = new ConcurrentHashMap<String, Boolean>();
+		} finally {
+			releaseWrite();
 		}
+	}
 
-		database.delete(URI_TABLE, null, new String[0]);
+	/**
+	 * Adds many domains to the trusted domains in one transaction. Domains
+	 * which are trusted already are ignored.
+	 *
+	 * @param domains
+	 *            The domains to trust.
+	 * @throws NullPointerException
+	 *             In case domains is or contains null. No domain is added
+	 *             then.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public void addDomains(Collection<String> domains) {
+		if (domains == null) {
+			throw new NullPointerException("domains must not be null");
+		}
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			boolean isSuccessful = false;
+			database.beginTransaction();
+			try {
+				for (String domain : domains) {
+					if (domain == null) {
+						throw new NullPointerException(
+								"domains must not contain null");
+					}
+					insertDomain(domain);
+				}
+				isSuccessful = true;
+			} finally {
+				endTransaction(isSuccessful);
+			}
+			for (String domain : domains) {
+				trustedDomainIndex = addToIndex(trustedDomainIndex, domain);
+			}
+		} finally {
+			releaseWrite();
+		}
 	}
 
 	/**
-	 * Checks if the provided domain is trusted.
+	 * Removes many domains from the trusted domains in one transaction.
 	 *
-	 * @param domain
-	 *            The domain (host) to check.
-	 * @return true if the domain is trusted.
+	 * @param domains
+	 *            The domains to remove.
+	 * @return The number of removed domains.
 	 * @throws NullPointerException
-	 *             In case domain is null.
+	 *             In case domains is or contains null. No domain is removed
+	 *             then.
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized boolean isDomainTrusted(String domain) {
-		if (domain == null) {
-			throw new NullPointerException("domain must not be null");
+	public int removeDomains(Collection<String> domains) {
+		if (domains == null) {
+			throw new NullPointerException("domains must not be null");
 		}
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			int removed = 0;
+			boolean isSuccessful = false;
+			database.beginTransaction();
+			try {
+				for (String domain : domains) {
+					if (domain == null) {
+						throw new NullPointerException(
+								"domains must not contain null");
+					}
+					if (deleteDomain(domain)) {
+						removed++;
+					}
+				}
+				isSuccessful = true;
+			} finally {
+				endTransaction(isSuccessful);
+			}
+			for (String domain : domains) {
+				removeFromIndex(trustedDomainIndex, domain);
+			}
+			return removed;
+		} finally {
+			releaseWrite();
 		}
+	}
 
-		Cursor cursor = null;
+	/**
+	 * Adds many uris to the trusted uris in one transaction. Uris which are
+	 * trusted already are ignored.
+	 *
+	 * @param uris
+	 *            The uris to trust.
+	 * @throws NullPointerException
+	 *             In case uris is or contains null. No uri is added then.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public void addUris(Collection<Uri> uris) {
+		if (uris == null) {
+			throw new NullPointerException("uris must not be null");
+		}
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			boolean isSuccessful = false;
+			database.beginTransaction();
+			try {
+				for (Uri uri : uris) {
+					if (uri == null) {
+						throw new NullPointerException(
+								"uris must not contain null");
+					}
+					insertUri(uri.toString());
+				}
+				isSuccessful = true;
+			} finally {
+				endTransaction(isSuccessful);
+			}
+			for (Uri uri : uris) {
+				trustedUriIndex = addToIndex(trustedUriIndex, uri.toString());
+			}
+		} finally {
+			releaseWrite();
+		}
+	}
+
+	/**
+	 * Removes many uris from the trusted uris in one transaction.
+	 *
+	 * @param uris
+	 *            The uris to remove.
+	 * @return The number of removed uris.
+	 * @throws NullPointerException
+	 *             In case uris is or contains null. No uri is removed then.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public int removeUris(Collection<Uri> uris) {
+		if (uris == null) {
+			throw new NullPointerException("uris must not be null");
+		}
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			int removed = 0;
+			boolean isSuccessful = false;
+			database.beginTransaction();
+			try {
+				for (Uri uri : uris) {
+					if (uri == null) {
+						throw new NullPointerException(
+								"uris must not contain null");
+					}
+					if (deleteUri(uri.toString())) {
+						removed++;
+					}
+				}
+				isSuccessful = true;
+			} finally {
+				endTransaction(isSuccessful);
+			}
+			for (Uri uri : uris) {
+				removeFromIndex(trustedUriIndex, uri.toString());
+			}
+			return removed;
+		} finally {
+			releaseWrite();
+		}
+	}
+
+	/**
+	 * Removes all trusted domains and uris in one transaction.
+	 *
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public void removeAllTrusted() throws IllegalStateException {
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			boolean isSuccessful = false;
+			database.beginTransaction();
+			try {
+				database.delete(DOMAIN_TABLE, null, new String[0]);
+				database.delete(URI_TABLE, null, new String[0]);
+				isSuccessful = true;
+			} finally {
+				endTransaction(isSuccessful);
+			}
+			trustedDomainIndex = new ConcurrentHashMap<String, Boolean>();
+			trustedUriIndex = new ConcurrentHashMap<String, Boolean>();
+		} finally {
+			releaseWrite();
+		}
+	}
+
+	/**
+	 * Reads a trust list and trusts all of its entries in one transaction.
+	 * The list is read line by line, every line is either empty, a comment
+	 * starting with <code>#</code>, <code>domain &lt;host&gt;</code> or
+	 * <code>uri &lt;uri&gt;</code>. This is the format written by
+	 * {@link #exportTrusted(Writer)}.
+	 *
+	 * @param reader
+	 *            The trust list to read. Is not closed.
+	 * @return The number of read entries, including ones which were trusted
+	 *         already.
+	 * @throws IOException
+	 *             If reading fails. Nothing is imported then.
+	 * @throws IllegalArgumentException
+	 *             If a line is malformed. Nothing is imported then.
+	 * @throws NullPointerException
+	 *             In case reader is null.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public int importTrusted(Reader reader) throws IOException {
+		if (reader == null) {
+			throw new NullPointerException("reader must not be null");
+		}
+		BufferedReader lineReader = new BufferedReader(reader);
+		acquireWrite();
 		try {
-			cursor = database.query(DOMAIN_TABLE, new String[] { DOMAIN_KEY },
-					DOMAIN_KEY + "='" + domain + "'", null, null, null, null);
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			List<String> importedDomains = new ArrayList<String>();
+			List<String> importedUris = new ArrayList<String>();
+			int lineNumber = 0;
+			boolean isSuccessful = false;
+			database.beginTransaction();
+			try {
+				String line;
+				while ((line = lineReader.readLine()) != null) {
+					lineNumber++;
+					line = line.trim();
+					if (line.length() == 0 || line.startsWith(COMMENT_PREFIX)) {
+						continue;
+					}
+					if (line.startsWith(DOMAIN_PREFIX)
+							&& line.length() > DOMAIN_PREFIX.length()) {
+						String domain = line.substring(DOMAIN_PREFIX.length())
+								.trim();
+						insertDomain(domain);
+						importedDomains.add(domain);
+					} else if (line.startsWith(URI_PREFIX)
+							&& line.length() > URI_PREFIX.length()) {
+						String uri = line.substring(URI_PREFIX.length()).trim();
+						insertUri(uri);
+						importedUris.add(uri);
+					} else {
+						throw new IllegalArgumentException("Line "
+								+ lineNumber
+								+ " of the trust list is malformed");
+					}
+				}
+				isSuccessful = true;
+			} finally {
+				endTransaction(isSuccessful);
+			}
+			for (String domain : importedDomains) {
+				trustedDomainIndex = addToIndex(trustedDomainIndex, domain);
+			}
+			for (String uri : importedUris) {
+				trustedUriIndex = addToIndex(trustedUriIndex, uri);
+			}
+			return importedDomains.size() + importedUris.size();
+		} finally {
+			releaseWrite();
+		}
+	}
 
-			boolean isTrusted = cursor.getCount() > 0;
+	/**
+	 * Writes all trusted domains and uris as trust list, see
+	 * {@link #importTrusted(Reader)} for the format.
+	 *
+	 * @param writer
+	 *            Receives the trust list. Is flushed but not closed.
+	 * @return The number of written entries.
+	 * @throws IOException
+	 *             If writing fails.
+	 * @throws NullPointerException
+	 *             In case writer is null.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public int exportTrusted(Writer writer) throws IOException {
+		if (writer == null) {
+			throw new NullPointerException("writer must not be null");
+		}
+		acquireRead();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			int entries = exportTable(writer, DOMAIN_TABLE, DOMAIN_KEY,
+					DOMAIN_PREFIX);
+			entries += exportTable(writer, URI_TABLE, URI_KEY, URI_PREFIX);
+			writer.flush();
+			return entries;
+		} finally {
+			releaseRead();
+		}
+	}
 
-			Log.d(LOG_TAG, MessageFormat.format(
-					"Trust check for domain {0}: {1}", domain, isTrusted));
+	/**
+	 * Rebuilds the database file to give the space of removed rows back to
+	 * the file system. Takes a while on large databases, call it from a
+	 * background thread.
+	 *
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public void compact() throws IllegalStateException {
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			database.execSQL("VACUUM");
+		} finally {
+			releaseWrite();
+		}
+	}
 
-			return isTrusted;
+	private int exportTable(Writer writer, String table, String key,
+			String prefix) throws IOException {
+		Cursor cursor = null;
+		try {
+			cursor = database.query(table, new String[] { key }, null, null,
+					null, null, null);
+			while (cursor.moveToNext()) {
+				writer.write(prefix);
+				writer.write(cursor.getString(0));
+				writer.write('\n');
+			}
+			return cursor.getCount();
 		} finally {
 			cursor.close();
 		}
 	}
 
+	/**
+	 * Trusts the domain. Must be called while holding the writer lock, the
+	 * index is updated by the caller once the change is committed.
+	 */
+	private long insertDomain(String domain) {
+		insertDomainStatement.bindString(1, domain);
+		return insertDomainStatement.executeInsert();
+	}
+
+	/**
+	 * Stops trusting the domain. Must be called while holding the writer
+	 * lock, the index is updated by the caller once the change is committed.
+	 */
+	private boolean deleteDomain(String domain) {
+		return (database.delete(DOMAIN_TABLE, DOMAIN_KEY + "= ?",
+				new String[] { domain })) > 0;
+	}
+
+	/**
+	 * Trusts the uri. Must be called while holding the writer lock, the index
+	 * is updated by the caller once the change is committed.
+	 */
+	private long insertUri(String uri) {
+		insertUriStatement.bindString(1, uri);
+		return insertUriStatement.executeInsert();
+	}
+
+	/**
+	 * Stops trusting the uri. Must be called while holding the writer lock,
+	 * the index is updated by the caller once the change is committed.
+	 */
+	private boolean deleteUri(String uri) {
+		return (database.delete(URI_TABLE, URI_KEY + "= ?",
+				new String[] { uri })) > 0;
+	}
+
+	/**
+	 * Ends a transaction, committing it if it was successful. Must be called
+	 * while holding the writer lock.
+	 */
+	private void endTransaction(boolean isSuccessful) {
+		if (isSuccessful) {
+			database.setTransactionSuccessful();
+		}
+		database.endTransaction();
+	}
+
+	/**
+	 * Checks if the provided domain is trusted.
+	 *
+	 * @param domain
+	 *            The domain (host) to check.
+	 * @return true if the domain is trusted.
+	 * @throws NullPointerException
+	 *             In case domain is null.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public boolean isDomainTrusted(String domain) {
+		if (domain == null) {
+			throw new NullPointerException("domain must not be null");
+		}
+
+		Map<String, Boolean> index = trustedDomainIndex;
+		if (index != null) {
+			return index.containsKey(domain);
+		}
+		return isTrustedInDb(domainTrustedStatement, domain, null);
+	}
+
 	/**
 	 * Checks if the provided uri is trusted.
 	 *
@@ -252,33 +768,337 @@ public final class DbAdapter {
 	 * @throws IllegalStateException
 	 *             In case {@link #open()} was never called.
 	 */
-	public synchronized boolean isUriTrusted(Uri uri) {
+	public boolean isUriTrusted(Uri uri) {
 		if (uri == null) {
 			throw new NullPointerException("uri must not be null");
 		}
-		if (!isOpened) {
-			throw new IllegalStateException("DbAdapter must be opened");
+
+		Map<String, Boolean> index = trustedUriIndex;
+		if (index != null) {
+			return index.containsKey(uri.toString());
 		}
+		return isTrustedInDb(uriTrustedStatement, uri.toString(), null);
+	}
 
-		Cursor cursor = null;
+	/**
+	 * Checks if the host of the provided uri or the uri itself is trusted.
+	 *
+	 * @param uri
+	 *            The uri to check.
+	 * @return true if the domain or the uri is trusted.
+	 * @throws NullPointerException
+	 *             In case uri is null.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public boolean isTrusted(Uri uri) {
+		if (uri == null) {
+			throw new NullPointerException("uri must not be null");
+		}
+
+		String domain = uri.getHost();
+		Map<String, Boolean> domainIndex = trustedDomainIndex;
+		Map<String, Boolean> uriIndex = trustedUriIndex;
+		if (domainIndex != null && uriIndex != null) {
+			return (domain != null && domainIndex.containsKey(domain))
+					|| uriIndex.containsKey(uri.toString());
+		}
+		return isTrustedInDb(trustedStatement, domain, uri.toString());
+	}
+
+	/**
+	 * Runs one of the compiled existence checks. Used if a table is too large
+	 * to be held in memory or the adapter is closed.
+	 *
+	 * @param statement
+	 *            The statement to run.
+	 * @param firstArg
+	 *            The first argument, may be <code>null</code>.
+	 * @param secondArg
+	 *            The second argument or <code>null</code> if the statement
+	 *            takes only one.
+	 */
+	private boolean isTrustedInDb(SQLiteStatement statement,
+			String firstArg, String secondArg) {
+		acquireRead();
 		try {
-			cursor = database.query(URI_TABLE, new String[] { URI_KEY },
-					URI_KEY + "='" + uri.toString() + "'", null, null, null,
-					null);
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+
+			// Readers share the compiled statements.
+			synchronized (statement) {
+				bindNullable(statement, 1, firstArg);
+				if (secondArg != null) {
+					statement.bindString(2, secondArg);
+				}
+				return statement.simpleQueryForLong() != 0;
+			}
+		} finally {
+			releaseRead();
+		}
+	}
+
+	private static void bindNullable(SQLiteStatement statement, int index,
+			String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
 
-			boolean isTrusted = cursor.getCount() > 0;
-			Log.d(LOG_TAG, MessageFormat.format("Trust check for uri {0}: {1}",
-					uri, isTrusted));
+	/**
+	 * Creates an expression which is 1 if the table contains the bound value
+	 * and else 0. Stops at the first match.
+	 */
+	private static String createExistsClause(String table, String key) {
+		return "EXISTS (SELECT 1 FROM " + table + " WHERE " + key
+				+ "= ? LIMIT 1)";
+	}
 
-			return isTrusted;
+	/**
+	 * Loads all values of the table into memory. Must be called while holding
+	 * the write lock of the {@link #lifecycleLock} or the writer lock.
+	 *
+	 * @return The index or <code>null</code> if the table holds more than
+	 *         {@link #MAX_INDEXED_TRUSTED} rows.
+	 */
+	private Map<String, Boolean> loadIndex(String table, String key) {
+		Cursor cursor = null;
+		try {
+			cursor = database.query(table, new String[] { key }, null, null,
+					null, null, null);
+			if (cursor.getCount() > MAX_INDEXED_TRUSTED) {
+				Log.i(LOG_TAG, table + " is too large to be held in memory");
+				return null;
+			}
+			Map<String, Boolean> index = new ConcurrentHashMap<String, Boolean>(
+					Math.max(16, cursor.getCount() * 2));
+			while (cursor.moveToNext()) {
+				index.put(cursor.getString(0), Boolean.TRUE);
+			}
+			return index;
 		} finally {
 			cursor.close();
 		}
 	}
 
-	private ContentValues createSingleContentValues(String row, String data) {
-		ContentValues values = new ContentValues();
-		values.put(row, data);
-		return values;
+	/**
+	 * Writes an added value through to the index. Must be called while
+	 * holding the writer lock.
+	 *
+	 * @return The index to use from now on, <code>null</code> if it grew too
+	 *         large.
+	 */
+	private static Map<String, Boolean> addToIndex(Map<String, Boolean> index,
+			String value) {
+		if (index == null
+				|| (index.size() >= MAX_INDEXED_TRUSTED && !index
+						.containsKey(value))) {
+			return null;
+		}
+		index.put(value, Boolean.TRUE);
+		return index;
+	}
+
+	/**
+	 * Writes a removed value through to the index. Must be called while
+	 * holding the writer lock.
+	 */
+	private static void removeFromIndex(Map<String, Boolean> index,
+			String value) {
+		if (index != null) {
+			index.remove(value);
+		}
+	}
+
+	/**
+	 * Delivers the stored final uri the provided shortened uri resolved to.
+	 *
+	 * @param shortUri
+	 *            The shortened uri.
+	 * @return The final uri or <code>null</code> if the shortened uri was
+	 *         never resolved or the stored resolution has expired.
+	 * @throws NullPointerException
+	 *             In case shortUri is null.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public Uri getResolvedUri(Uri shortUri) {
+		if (shortUri == null) {
+			throw new NullPointerException("shortUri must not be null");
+		}
+
+		long now = System.currentTimeMillis();
+		Uri finalUri = null;
+		acquireRead();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+			String[] selectionArgs = new String[] { shortUri.toString(),
+					Long.toString(now) };
+			Cursor cursor = null;
+			try {
+				cursor = database.query(RESOLVED_URI_TABLE,
+						new String[] { FINAL_URI_KEY }, SHORT_URI_KEY
+								+ "= ? AND " + EXPIRES_AT_KEY + "> ?",
+						selectionArgs, null, null, null);
+				if (!cursor.moveToFirst()) {
+					return null;
+				}
+				finalUri = Uri.parse(cursor.getString(0));
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			releaseRead();
+		}
+
+		acquireWrite();
+		try {
+			if (isOpened) {
+				ContentValues values = new ContentValues();
+				values.put(LAST_ACCESS_KEY, Long.valueOf(now));
+				database.update(RESOLVED_URI_TABLE, values, SHORT_URI_KEY
+						+ "= ?", new String[] { shortUri.toString() });
+			}
+		} finally {
+			releaseWrite();
+		}
+		return finalUri;
+	}
+
+	/**
+	 * Stores the final uri a shortened uri resolved to. An existing
+	 * resolution of the shortened uri is replaced. Expired resolutions and,
+	 * if more than {@link #MAX_RESOLVED_URIS} are stored, the least recently
+	 * used ones are removed.
+	 *
+	 * @param shortUri
+	 *            The shortened uri.
+	 * @param finalUri
+	 *            The uri the shortened uri resolved to.
+	 * @param status
+	 *            The http status code the shortener answered with.
+	 * @param expiresAt
+	 *            The time in milliseconds since the epoch when the resolution
+	 *            expires.
+	 * @return The row id of the database entry or -1 in case of an error.
+	 * @throws NullPointerException
+	 *             In case shortUri or finalUri is null.
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public long addResolvedUri(Uri shortUri, Uri finalUri,
+			int status, long expiresAt) {
+		if (shortUri == null) {
+			throw new NullPointerException("shortUri must not be null");
+		}
+		if (finalUri == null) {
+			throw new NullPointerException("finalUri must not be null");
+		}
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+
+			long now = System.currentTimeMillis();
+			ContentValues values = new ContentValues();
+			values.put(SHORT_URI_KEY, shortUri.toString());
+			values.put(FINAL_URI_KEY, finalUri.toString());
+			values.put(STATUS_KEY, Integer.valueOf(status));
+			values.put(RESOLVED_AT_KEY, Long.valueOf(now));
+			values.put(EXPIRES_AT_KEY, Long.valueOf(expiresAt));
+			values.put(LAST_ACCESS_KEY, Long.valueOf(now));
+
+			long rowId = database.replace(RESOLVED_URI_TABLE, null, values);
+			evictResolvedUris(now);
+			return rowId;
+		} finally {
+			releaseWrite();
+		}
+	}
+
+	/**
+	 * Removes all stored resolutions.
+	 *
+	 * @throws IllegalStateException
+	 *             In case {@link #open()} was never called.
+	 */
+	public void removeAllResolvedUris()
+			throws IllegalStateException {
+		acquireWrite();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+
+			database.delete(RESOLVED_URI_TABLE, null, new String[0]);
+		} finally {
+			releaseWrite();
+		}
+	}
+
+	/**
+	 * @return The number of stored resolutions including expired ones.
+	 */
+	int getResolvedUriCount() {
+		acquireRead();
+		try {
+			if (!isOpened) {
+				throw new IllegalStateException("DbAdapter must be opened");
+			}
+
+			Cursor cursor = null;
+			try {
+				cursor = database.rawQuery("SELECT COUNT(*) FROM "
+						+ RESOLVED_URI_TABLE, null);
+				cursor.moveToFirst();
+				return cursor.getInt(0);
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			releaseRead();
+		}
+	}
+
+	private void acquireRead() {
+		lifecycleLock.readLock().lock();
+	}
+
+	private void releaseRead() {
+		lifecycleLock.readLock().unlock();
+	}
+
+	private void acquireWrite() {
+		lifecycleLock.readLock().lock();
+		writerLock.lock();
+	}
+
+	private void releaseWrite() {
+		writerLock.unlock();
+		lifecycleLock.readLock().unlock();
+	}
+
+	/**
+	 * Removes expired resolutions and the least recently used ones exceeding
+	 * {@link #MAX_RESOLVED_URIS}. Must be called while holding the writer
+	 * lock.
+	 */
+	private void evictResolvedUris(long now) {
+		database.delete(RESOLVED_URI_TABLE, EXPIRES_AT_KEY + "<= ?",
+				new String[] { Long.toString(now) });
+
+		int excess = getResolvedUriCount() - MAX_RESOLVED_URIS;
+		if (excess > 0) {
+			database.execSQL("DELETE FROM " + RESOLVED_URI_TABLE + " WHERE "
+					+ SHORT_URI_KEY + " IN (SELECT " + SHORT_URI_KEY
+					+ " FROM " + RESOLVED_URI_TABLE + " ORDER BY "
+					+ LAST_ACCESS_KEY + " LIMIT " + excess + ")");
+		}
 	}
 }
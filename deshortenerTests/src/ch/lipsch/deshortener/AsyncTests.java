@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.net.Uri;
+import ch.lipsch.deshortener.Deshortener.Callback;
+import ch.lipsch.deshortener.Deshortener.ResolutionStore;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.Strategy;
+
+public class AsyncTests extends StubServerTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addPage("/b", "final");
+	}
+
+	public void testCallbackIsNotified() throws Exception {
+		final CountDownLatch notified = new CountDownLatch(1);
+		final AtomicReference<Result> notifiedResult = new AtomicReference<Result>();
+
+		PendingResult pendingResult = Deshortener.deshortenAsync(
+				server.uri("/a"), new Callback() {
+					public void onResult(Uri uri, Result result) {
+						notifiedResult.set(result);
+						notified.countDown();
+					}
+				});
+
+		assertTrue(notified.await(5, TimeUnit.SECONDS));
+		assertSame(pendingResult.get(), notifiedResult.get());
+		assertEquals(server.uri("/b"), notifiedResult.get()
+				.getDeshortenedUri());
+	}
+
+	public void testStoredResolutionIsLookedUpInBackground()
+			throws Exception {
+		final Thread caller = Thread.currentThread();
+		final AtomicReference<Thread> storeThread = new AtomicReference<Thread>();
+
+		PendingResult pendingResult = Deshortener.deshortenAsync(
+				server.uri("/a"), Strategy.HEAD_THEN_GET,
+				new ResolutionStore() {
+					public Uri getResolvedUri(Uri shortUri) {
+						storeThread.set(Thread.currentThread());
+						return server.uri("/stored");
+					}
+				}, null);
+
+		assertEquals(server.uri("/stored"), pendingResult.get(5,
+				TimeUnit.SECONDS).getDeshortenedUri());
+		assertNotSame(caller, storeThread.get());
+		assertEquals(0, server.getRequestCount());
+	}
+
+	public void testCancelAbortsRequest() throws Exception {
+		server.setResponseLatencyMillis(10000);
+		final CountDownLatch notified = new CountDownLatch(1);
+
+		PendingResult pendingResult = Deshortener.deshortenAsync(
+				server.uri("/a"), new Callback() {
+					public void onResult(Uri uri, Result result) {
+						notified.countDown();
+					}
+				});
+		Thread.sleep(200);
+		assertTrue(pendingResult.cancel(true));
+
+		// The lookup stops long before the server would answer.
+		assertTrue(pendingResult.awaitFinished(2, TimeUnit.SECONDS));
+		assertTrue(pendingResult.isCancelled());
+		assertFalse(notified.await(100, TimeUnit.MILLISECONDS));
+	}
+
+	public void testJoinsRunningLookup() throws Exception {
+		server.setResponseLatencyMillis(200);
+		PendingResult speculativeLookup = Deshortener.deshortenAsync(
+				server.uri("/a"), null);
+		Thread.sleep(100);
+
+		long start = System.nanoTime();
+		PendingResult lookup = Deshortener.deshortenAsync(server.uri("/a"),
+				null);
+		Result result = lookup.get(5, TimeUnit.SECONDS);
+
+		assertEquals(server.uri("/b"), result.getDeshortenedUri());
+		assertSame(speculativeLookup.get(), result);
+		// Only the requests of the first lookup were sent.
+		assertEquals(2, server.getRequestCount());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS
+				.toNanos(400));
+	}
+
+	public void testCancelledLookupIsNotJoined() throws Exception {
+		server.setResponseLatencyMillis(200);
+		PendingResult speculativeLookup = Deshortener.deshortenAsync(
+				server.uri("/a"), null);
+		Thread.sleep(100);
+
+		PendingResult lookup = Deshortener.deshortenAsync(server.uri("/a"),
+				null);
+		speculativeLookup.cancel(true);
+
+		assertTrue(lookup.get(5, TimeUnit.SECONDS).wasSuccessful());
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.Uri;
+import android.util.Log;
+import ch.lipsch.deshortener.Deshortener.Callback;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.test.StubHttpServer;
+
+public class BatchTests extends StubServerTestCase {
+
+	private static final String LOG_TAG = BatchTests.class.getName();
+	private static final int SERVERS = 4;
+	private static final int LINKS_PER_SERVER = 50;
+	private static final long RESPONSE_LATENCY_MILLIS = 20;
+
+	private final List<StubHttpServer> servers = new ArrayList<StubHttpServer>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		servers.add(server);
+		for (int i = 1; i < SERVERS; i++) {
+			servers.add(new StubHttpServer().start());
+		}
+		for (StubHttpServer stubServer : servers) {
+			for (int link = 0; link < LINKS_PER_SERVER; link++) {
+				stubServer.addRedirect("/" + link, 301, "/long/" + link);
+				stubServer.addPage("/long/" + link, "final");
+			}
+		}
+	}
+
+	public void testResultsInInputOrder() throws InterruptedException {
+		List<Uri> uris = Arrays.asList(server.uri("/2"), server.uri("/0"),
+				server.uri("/1"));
+
+		List<Result> results = Deshortener.deshortenAll(uris);
+
+		assertEquals(3, results.size());
+		assertEquals(server.uri("/long/2"), results.get(0)
+				.getDeshortenedUri());
+		assertEquals(server.uri("/long/0"), results.get(1)
+				.getDeshortenedUri());
+		assertEquals(server.uri("/long/1"), results.get(2)
+				.getDeshortenedUri());
+	}
+
+	public void testCollapsesDuplicates() throws InterruptedException {
+		List<Uri> uris = Arrays.asList(server.uri("/0"), server.uri("/0"),
+				server.uri("/0"));
+		final AtomicInteger callbackCount = new AtomicInteger();
+
+		List<Result> results = Deshortener.deshortenAll(uris, 4,
+				new Callback() {
+					public void onResult(Uri uri, Result result) {
+						callbackCount.incrementAndGet();
+					}
+				});
+
+		assertEquals(3, results.size());
+		assertSame(results.get(0), results.get(2));
+		assertEquals(1, callbackCount.get());
+		// One HEAD request per hop
+		assertEquals(2, server.getRequestCount());
+	}
+
+	public void testInterruptAbortsLookups() throws Exception {
+		server.setResponseLatencyMillis(10000);
+		final List<Uri> uris = new ArrayList<Uri>();
+		for (int link = 0; link < Deshortener.MAX_CONCURRENT_PER_HOST; link++) {
+			uris.add(server.uri("/" + link));
+		}
+		Thread batch = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Deshortener.deshortenAll(uris);
+				} catch (InterruptedException e) {
+					// Expected
+				}
+			}
+		};
+		batch.start();
+		Thread.sleep(300);
+		batch.interrupt();
+		batch.join(1000);
+		assertFalse(batch.isAlive());
+
+		// The aborted lookups gave their connections and slots back.
+		server.setResponseLatencyMillis(0);
+		long start = System.nanoTime();
+		List<Result> results = Deshortener.deshortenAll(Arrays.asList(server
+				.uri("/" + LINKS_PER_SERVER / 2)));
+		assertTrue(results.get(0).wasSuccessful());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+	}
+
+	public void testCancelledQueuedLookupsReleaseSlots() throws Exception {
+		// A batch keeps all threads of the executor busy, the lookups of the
+		// second batch wait in its queue while holding slots of their host.
+		List<Uri> slowUris = new ArrayList<Uri>();
+		for (StubHttpServer stubServer : servers) {
+			stubServer.setResponseLatencyMillis(1000);
+			for (int link = 0; link < Deshortener.MAX_BATCH_PARALLELISM
+					/ SERVERS; link++) {
+				slowUris.add(stubServer.uri("/" + link));
+			}
+		}
+		final StubHttpServer fastServer = new StubHttpServer().start();
+		servers.add(fastServer);
+		fastServer.addRedirect("/a", 301, "/b");
+		fastServer.addPage("/b", "final");
+		final List<Uri> fastUris = new ArrayList<Uri>();
+		for (int link = 0; link < Deshortener.MAX_CONCURRENT_PER_HOST; link++) {
+			fastUris.add(fastServer.uri("/a?" + link));
+		}
+
+		Thread slowBatch = startBatch(slowUris,
+				Deshortener.MAX_BATCH_PARALLELISM);
+		Thread.sleep(200);
+		Thread queuedBatch = startBatch(fastUris, fastUris.size());
+		Thread.sleep(200);
+		queuedBatch.interrupt();
+		queuedBatch.join(1000);
+		slowBatch.join(10000);
+
+		// The slots of the fast host are free again.
+		Thread batch = startBatch(fastUris, fastUris.size());
+		batch.join(3000);
+		assertFalse(batch.isAlive());
+	}
+
+	/**
+	 * A sequential batch gets along with one kept alive connection per
+	 * server, lookups running in parallel need connections of their own.
+	 * The throughput is reported by {@link EngineBenchmark}.
+	 */
+	public void testRunsLookupsInParallel() throws InterruptedException {
+		List<Uri> uris = new ArrayList<Uri>();
+		for (int link = 0; link < LINKS_PER_SERVER; link++) {
+			for (StubHttpServer stubServer : servers) {
+				uris.add(stubServer.uri("/" + link));
+			}
+		}
+		for (StubHttpServer stubServer : servers) {
+			stubServer.setResponseLatencyMillis(RESPONSE_LATENCY_MILLIS);
+		}
+
+		assertEquals(SERVERS, countConnections(uris, 1));
+		assertTrue(countConnections(uris,
+				Deshortener.MAX_BATCH_PARALLELISM) > SERVERS);
+	}
+
+	/**
+	 * Deshortens the uris with a new client.
+	 *
+	 * @return The number of connections opened to all servers.
+	 */
+	private int countConnections(List<Uri> uris, int parallelism)
+			throws InterruptedException {
+		Deshortener.shutdown();
+		Deshortener.getCache().clear();
+		for (StubHttpServer stubServer : servers) {
+			stubServer.resetCounters();
+		}
+
+		for (Result result : Deshortener.deshortenAll(uris, parallelism, null)) {
+			assertTrue(result.wasSuccessful());
+		}
+
+		int connections = 0;
+		for (StubHttpServer stubServer : servers) {
+			connections += stubServer.getConnectionCount();
+		}
+		Log.i(LOG_TAG, "Parallelism " + parallelism + ": " + connections
+				+ " connections");
+		return connections;
+	}
+
+	private static Thread startBatch(final List<Uri> uris,
+			final int parallelism) {
+		Thread batch = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Deshortener.deshortenAll(uris, parallelism, null);
+				} catch (InterruptedException e) {
+					// Expected
+				}
+			}
+		};
+		batch.start();
+		return batch;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		// The first server is stopped by the super class.
+		for (StubHttpServer stubServer : servers.subList(1, servers.size())) {
+			stubServer.stop();
+		}
+		super.tearDown();
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+import ch.lipsch.deshortener.test.StubHttpServer.Response;
+
+public class CircuitBreakerTests extends StubServerTestCase {
+
+	private static final String HOST = "bit.ly";
+	private static final long BACKOFF_MILLIS = 100;
+
+	private CircuitBreaker circuits;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		circuits = new CircuitBreaker(BACKOFF_MILLIS, 4 * BACKOFF_MILLIS);
+	}
+
+	public void testStaysClosedWhileRequestsSucceed() {
+		for (int i = 0; i < 3 * CircuitBreaker.WINDOW_SIZE; i++) {
+			long ticket = circuits.allowRequest(HOST);
+			assertEquals(CircuitBreaker.NO_PROBE, ticket);
+			if (i % 3 == 0) {
+				circuits.recordFailure(HOST, ticket);
+			} else {
+				circuits.recordSuccess(HOST, ticket);
+			}
+		}
+		assertFalse(circuits.isRejecting(HOST));
+	}
+
+	public void testNeedsMinimumNumberOfRequests() {
+		for (int i = 1; i < CircuitBreaker.MIN_REQUESTS; i++) {
+			circuits.recordFailure(HOST, CircuitBreaker.NO_PROBE);
+		}
+		assertEquals(CircuitBreaker.NO_PROBE, circuits.allowRequest(HOST));
+	}
+
+	public void testOpensOnFailures() {
+		open();
+
+		assertTrue(circuits.isRejecting(HOST));
+		assertEquals(CircuitBreaker.REJECTED, circuits.allowRequest(HOST));
+		// Other hosts are not affected.
+		assertEquals(CircuitBreaker.NO_PROBE, circuits.allowRequest("goo.gl"));
+	}
+
+	public void testProbeClosesCircuit() throws InterruptedException {
+		open();
+		Thread.sleep(BACKOFF_MILLIS + 50);
+
+		assertFalse(circuits.isRejecting(HOST));
+		long probe = circuits.allowRequest(HOST);
+		assertTrue(probe > CircuitBreaker.NO_PROBE);
+		// Only one probe at a time
+		assertEquals(CircuitBreaker.REJECTED, circuits.allowRequest(HOST));
+		circuits.recordSuccess(HOST, probe);
+
+		assertEquals(CircuitBreaker.NO_PROBE, circuits.allowRequest(HOST));
+		assertFalse(circuits.isRejecting(HOST));
+	}
+
+	public void testFailedProbeDoublesBackoff() throws InterruptedException {
+		open();
+		Thread.sleep(BACKOFF_MILLIS + 50);
+		long probe = circuits.allowRequest(HOST);
+		assertTrue(probe > CircuitBreaker.NO_PROBE);
+		circuits.recordFailure(HOST, probe);
+
+		Thread.sleep(BACKOFF_MILLIS + 50);
+		assertEquals(CircuitBreaker.REJECTED, circuits.allowRequest(HOST));
+		Thread.sleep(BACKOFF_MILLIS);
+		assertTrue(circuits.allowRequest(HOST) > CircuitBreaker.NO_PROBE);
+	}
+
+	public void testAbandonedProbeIsReplaced() throws InterruptedException {
+		open();
+		Thread.sleep(BACKOFF_MILLIS + 50);
+		long probe = circuits.allowRequest(HOST);
+		circuits.recordAbandoned(HOST, probe);
+
+		assertTrue(circuits.allowRequest(HOST) > CircuitBreaker.NO_PROBE);
+	}
+
+	public void testOnlyTheProbeDecides() throws InterruptedException {
+		// Sent while the circuit was still closed
+		long earlyTicket = circuits.allowRequest(HOST);
+		open();
+		Thread.sleep(BACKOFF_MILLIS + 50);
+		long probe = circuits.allowRequest(HOST);
+
+		circuits.recordAbandoned(HOST, earlyTicket);
+		circuits.recordSuccess(HOST, earlyTicket);
+
+		// The probe is still running
+		assertTrue(circuits.isRejecting(HOST));
+		assertEquals(CircuitBreaker.REJECTED, circuits.allowRequest(HOST));
+		circuits.recordSuccess(HOST, probe);
+		assertFalse(circuits.isRejecting(HOST));
+	}
+
+	public void testForgetsHostsWithoutFailures() {
+		circuits.recordFailure(HOST, CircuitBreaker.NO_PROBE);
+		assertEquals(1, circuits.getCircuitCount());
+
+		for (int i = 0; i < CircuitBreaker.WINDOW_SIZE; i++) {
+			circuits.recordSuccess(HOST, circuits.allowRequest(HOST));
+		}
+		assertEquals(0, circuits.getCircuitCount());
+	}
+
+	public void testForgetsHostAfterSuccessfulProbe()
+			throws InterruptedException {
+		open();
+		Thread.sleep(BACKOFF_MILLIS + 50);
+		circuits.recordSuccess(HOST, circuits.allowRequest(HOST));
+
+		assertEquals(0, circuits.getCircuitCount());
+	}
+
+	public void testNumberOfCircuitsIsBounded() {
+		open();
+		for (int i = 0; i < 2 * CircuitBreaker.MAX_CIRCUITS; i++) {
+			circuits.recordFailure("host" + i + ".com", CircuitBreaker.NO_PROBE);
+		}
+
+		assertTrue(circuits.getCircuitCount() <= CircuitBreaker.MAX_CIRCUITS);
+		// Open circuits are kept.
+		assertTrue(circuits.isRejecting(HOST));
+	}
+
+	public void testLookupFailsFastWhenOpen() throws Exception {
+		for (int i = 0; i < CircuitBreaker.MIN_REQUESTS; i++) {
+			server.addResponse("/" + i, new Response(503, "Overloaded"));
+			assertFalse(Deshortener.deshorten(server.uri("/" + i))
+					.wasSuccessful());
+		}
+		server.addRedirect("/a", 301, "/b");
+		server.resetCounters();
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		assertEquals(ResultType.HOST_UNAVAILABLE, result.getResultType());
+		assertEquals(0, server.getRequestCount());
+		// The rejection is not cached.
+		Deshortener.resetHostState();
+		server.addPage("/b", "final");
+		assertTrue(Deshortener.deshorten(server.uri("/a")).wasSuccessful());
+	}
+
+	public void testOpenCircuitDoesNotWaitForRateLimit() throws Exception {
+		String hostKey = HostLimiter.getHostKey(server.uri("/"));
+		try {
+			Deshortener.setHostLimits(hostKey,
+					Deshortener.MAX_CONCURRENT_PER_HOST, 2);
+			for (int i = 0; i < CircuitBreaker.MIN_REQUESTS; i++) {
+				server.addResponse("/" + i, new Response(503, "Overloaded"));
+				Deshortener.deshorten(server.uri("/" + i));
+			}
+
+			long start = System.nanoTime();
+			Result result = Deshortener.deshorten(server.uri("/a"));
+
+			assertEquals(ResultType.HOST_UNAVAILABLE, result.getResultType());
+			// The next slot of the rate limit is at least 500ms away.
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS
+					.toNanos(200));
+		} finally {
+			Deshortener.setHostLimits(hostKey,
+					Deshortener.MAX_CONCURRENT_PER_HOST, 0);
+		}
+	}
+
+	private void open() {
+		for (int i = 0; i < CircuitBreaker.MIN_REQUESTS; i++) {
+			long ticket = circuits.allowRequest(HOST);
+			assertEquals(CircuitBreaker.NO_PROBE, ticket);
+			circuits.recordFailure(HOST, ticket);
+		}
+	}
+}
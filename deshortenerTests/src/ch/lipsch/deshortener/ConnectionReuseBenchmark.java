@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Compares the latency per lookup of the pooled client with and without
+ * reusing connections. Only the connection counts are asserted, the
+ * latencies are logged.
+ */
+public class ConnectionReuseBenchmark extends StubServerTestCase {
+
+	private static final String LOG_TAG = ConnectionReuseBenchmark.class
+			.getName();
+	private static final int LOOKUPS = 50;
+	private static final long CONNECT_LATENCY_MILLIS = 20;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server.setConnectLatencyMillis(CONNECT_LATENCY_MILLIS);
+		server.addRedirect("/short", 301, server.uri("/long").toString());
+		server.addPage("/long", "Deshortened");
+	}
+
+	public void testReusesConnections() {
+		Uri uri = server.uri("/short");
+
+		// Warm up
+		assertTrue(Deshortener.deshorten(uri).wasSuccessful());
+
+		server.resetCounters();
+		long coldNanos = 0;
+		for (int i = 0; i < LOOKUPS; i++) {
+			Deshortener.getCache().clear();
+			SharedHttpClient.closeIdleConnections();
+			long start = System.nanoTime();
+			assertTrue(Deshortener.deshorten(uri).wasSuccessful());
+			coldNanos += System.nanoTime() - start;
+		}
+		int coldConnections = server.getConnectionCount();
+
+		server.resetCounters();
+		long warmNanos = 0;
+		for (int i = 0; i < LOOKUPS; i++) {
+			Deshortener.getCache().clear();
+			long start = System.nanoTime();
+			assertTrue(Deshortener.deshorten(uri).wasSuccessful());
+			warmNanos += System.nanoTime() - start;
+		}
+		int warmConnections = server.getConnectionCount();
+
+		long coldMicros = coldNanos / LOOKUPS / 1000;
+		long warmMicros = warmNanos / LOOKUPS / 1000;
+		Log.i(LOG_TAG, "New connection per lookup: " + coldMicros
+				+ "us/lookup, " + coldConnections + " connections");
+		Log.i(LOG_TAG, "Reused connections: " + warmMicros + "us/lookup, "
+				+ warmConnections + " connections");
+
+		assertEquals(LOOKUPS, coldConnections);
+		assertTrue(warmConnections <= 1);
+	}
+}
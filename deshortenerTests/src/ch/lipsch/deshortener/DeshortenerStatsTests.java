@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.StringWriter;
+
+import android.net.Uri;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+import ch.lipsch.deshortener.DeshortenerStats.Snapshot;
+
+public class DeshortenerStatsTests extends StubServerTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server.addRedirect("/a", 301, "/b");
+		server.addRedirect("/b", 302, "/c");
+		server.addPage("/c", "final");
+		server.addPage("/page", "no redirect");
+		Deshortener.getStats().reset();
+	}
+
+	public void testCountsResultsAndDepth() {
+		Deshortener.deshorten(server.uri("/a"));
+		Deshortener.deshorten(server.uri("/page"));
+
+		Snapshot snapshot = Deshortener.getStats().snapshot();
+		assertEquals(2, snapshot.getLookupCount());
+		assertEquals(1, snapshot.getResultCount(ResultType.SUCCESS));
+		assertEquals(1, snapshot.getResultCount(ResultType.CANNOT_DESHORTEN));
+		assertEquals(1, snapshot.getDepthCount(3));
+		assertEquals(0, snapshot.getDepthCount(1));
+	}
+
+	public void testRecordsLatencyPerHost() {
+		server.setResponseLatencyMillis(50);
+		Deshortener.deshorten(server.uri("/a"));
+
+		Snapshot snapshot = Deshortener.getStats().snapshot();
+		String host = server.uri("/").getHost();
+		assertTrue(snapshot.getHosts().contains(host));
+		assertEquals(3, snapshot.getRequestCount(host));
+		assertEquals(0, snapshot.getFailureCount(host));
+		long p50 = snapshot.getRequestLatencyNanos(host, 50);
+		assertTrue(p50 >= 50 * 1000000L);
+		assertTrue(p50 <= snapshot.getRequestLatencyNanos(host, 99));
+		assertTrue(snapshot.getLookupLatencyNanos(50) >= 3 * 50 * 1000000L);
+	}
+
+	public void testRecordsFailures() {
+		server.dropNextRequests(Integer.MAX_VALUE);
+		Deshortener.deshorten(server.uri("/a"));
+
+		Snapshot snapshot = Deshortener.getStats().snapshot();
+		assertEquals(1, snapshot.getResultCount(ResultType.NETWORK_ERROR));
+		assertEquals(1, snapshot.getFailureCount(server.uri("/").getHost()));
+	}
+
+	public void testCapsTrackedHosts() {
+		DeshortenerStats stats = new DeshortenerStats(new ResolutionCache(1),
+				new SingleFlight());
+		assertTrue(stats.snapshot().getHosts().isEmpty());
+
+		for (int i = 0; i < 2 * DeshortenerStats.MAX_TRACKED_HOSTS; i++) {
+			stats.recordRequest("host" + i, 1000);
+		}
+
+		Snapshot snapshot = stats.snapshot();
+		assertEquals(DeshortenerStats.MAX_TRACKED_HOSTS, snapshot.getHosts()
+				.size());
+		assertEquals(DeshortenerStats.MAX_TRACKED_HOSTS + 1, snapshot
+				.getRequestCount(DeshortenerStats.OTHER_HOSTS));
+		stats.reset();
+		assertTrue(stats.snapshot().getHosts().isEmpty());
+	}
+
+	public void testRecordsCacheHits() {
+		Uri uri = server.uri("/a");
+		Deshortener.deshorten(uri);
+		long hits = Deshortener.getStats().snapshot().getCacheHitCount();
+		Deshortener.deshorten(uri);
+
+		Snapshot snapshot = Deshortener.getStats().snapshot();
+		assertEquals(hits + 1, snapshot.getCacheHitCount());
+		assertTrue(snapshot.getCacheHitRate() > 0);
+	}
+
+	public void testExport() throws Exception {
+		Deshortener.deshorten(server.uri("/a"));
+
+		StringWriter out = new StringWriter();
+		Deshortener.getStats().snapshot().export(out);
+		String export = out.toString();
+		assertTrue(export.contains("lookups count=1 "));
+		assertTrue(export.contains("result SUCCESS 1\n"));
+		assertTrue(export.contains("depth 3 1\n"));
+		assertTrue(export.contains("host " + server.uri("/").getHost()
+				+ " requests=3 failures=0 "));
+	}
+
+	public void testHistogramAccuracy() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 1000000; micros++) {
+			histogram.record(micros * 1000);
+		}
+		long[] counts = histogram.getCounts();
+		assertEquals(1000000, LatencyHistogram.getTotal(counts));
+		assertAccurate(500000, LatencyHistogram.getPercentileNanos(counts, 50));
+		assertAccurate(950000, LatencyHistogram.getPercentileNanos(counts, 95));
+		assertAccurate(990000, LatencyHistogram.getPercentileNanos(counts, 99));
+		assertEquals(0, LatencyHistogram.getPercentileNanos(
+				new LatencyHistogram().getCounts(), 50));
+	}
+
+	public void testHistogramBuckets() {
+		for (long micros = 0; micros < 100000; micros++) {
+			int bucket = LatencyHistogram.getBucket(micros);
+			assertTrue(micros <= LatencyHistogram.getUpperBoundMicros(bucket));
+			if (bucket > 0) {
+				assertTrue(micros > LatencyHistogram
+						.getUpperBoundMicros(bucket - 1));
+			}
+		}
+		assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram
+				.getBucket(Long.MAX_VALUE));
+	}
+
+	private static void assertAccurate(long expectedMicros, long actualNanos) {
+		long actualMicros = actualNanos / 1000;
+		assertTrue(actualMicros + " not within 25% of " + expectedMicros,
+				actualMicros >= expectedMicros
+						&& actualMicros <= expectedMicros * 5 / 4);
+	}
+}
@@ -16,15 +16,27 @@
  * You should have received a copy of the GNU General Public License along with
  * this program; If not, see <http://www.gnu.org/licenses/>.
  */
-package ch.lipsch.deshortener.test;
+package ch.lipsch.deshortener;
+
+import org.apache.http.HttpHost;
 
 import android.net.Uri;
-import android.test.AndroidTestCase;
-import ch.lipsch.deshortener.Deshortener;
 import ch.lipsch.deshortener.Deshortener.Result;
 import ch.lipsch.deshortener.Deshortener.ResultType;
+import ch.lipsch.deshortener.test.Fixtures;
+
+/**
+ * Deshortens links of real shorteners. The responses of the shorteners are
+ * replayed from fixtures by a local server acting as proxy.
+ */
+public class DeshortenerTests extends StubServerTestCase {
 
-public class DeshortenerTests extends AndroidTestCase {
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server.addFixtures(Fixtures.load("shorteners.fixtures"));
+		SharedHttpClient.setProxy(new HttpHost("127.0.0.1", server.getPort()));
+	}
 
 	public void testBitLy() {
 
@@ -70,7 +82,9 @@ public class DeshortenerTests extends AndroidTestCase {
 		Result result = Deshortener.deshorten(Uri
 				.parse("http://flpbd.it/rzru5"));
 		assertTrue(result.wasSuccessful());
-		assertEquals("http://t.co/r8XgrM8Z", result.getDeshortenedUri()
+		// flpbd.it redirects to t.co which is followed as well
+		assertTrue(result.getHops().size() > 1);
+		assertEquals("http://t.co/r8XgrM8Z", result.getHops().get(1).getUri()
 				.toString());
 	}
 
@@ -131,7 +145,9 @@ public class DeshortenerTests extends AndroidTestCase {
 	public void testTCo() {
 		Result result = Deshortener.deshorten(Uri.parse("http://t.co/Viub5y8"));
 		assertTrue(result.wasSuccessful());
-		assertEquals("http://goo.gl/Sj4XW", result.getDeshortenedUri()
+		// t.co redirects to goo.gl which is followed as well
+		assertTrue(result.getHops().size() > 1);
+		assertEquals("http://goo.gl/Sj4XW", result.getHops().get(1).getUri()
 				.toString());
 	}
 
@@ -172,4 +188,44 @@ public class DeshortenerTests extends AndroidTestCase {
 		assertEquals("http://www.evanmiller.org/why-i-program-in-erlang.html",
 				result.getDeshortenedUri().toString());
 	}
+
+	public void testDroppedResponseIsRetried() {
+		server.dropNextRequests(1);
+
+		Result result = Deshortener.deshorten(Uri.parse("http://goo.gl/fbsS"));
+		assertTrue(result.wasSuccessful());
+		assertEquals("http://www.google.com/", result.getDeshortenedUri()
+				.toString());
+	}
+
+	public void testLostShortenerIsNetworkError() {
+		server.dropNextRequests(Integer.MAX_VALUE);
+
+		Result result = Deshortener.deshorten(Uri.parse("http://goo.gl/fbsS"));
+		assertEquals(ResultType.NETWORK_ERROR, result.getResultType());
+	}
+
+	public void testSlowHeadersTimeOut() {
+		Deshortener.setTimeouts(1000, 200, 5000);
+		server.setHeaderDelayMillis(1000);
+
+		Result result = Deshortener.deshorten(Uri.parse("http://goo.gl/fbsS"));
+		// The header would arrive long before the deadline
+		assertEquals(ResultType.TIMEOUT, result.getResultType());
+	}
+
+	public void testLatencyWithinDeadline() {
+		Deshortener.setTimeouts(1000, 1000, 5000);
+		server.setResponseLatencyMillis(100);
+
+		Result result = Deshortener.deshorten(Uri.parse("http://t.co/Viub5y8"));
+		assertTrue(result.wasSuccessful());
+		assertTrue(result.getHops().size() > 1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		SharedHttpClient.setProxy(null);
+		super.tearDown();
+	}
 }
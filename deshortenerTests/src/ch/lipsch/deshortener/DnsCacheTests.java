@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.net.InetAddress;
+
+import org.apache.http.HttpHost;
+
+import ch.lipsch.deshortener.Deshortener.Result;
+
+public class DnsCacheTests extends StubServerTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server.addRedirect("/a", 301, "/b");
+		server.addPage("/b", "final");
+		SharedHttpClient.getDnsCache().clear();
+	}
+
+	public void testCachesAddresses() throws Exception {
+		DnsCache cache = new DnsCache(60000);
+
+		InetAddress[] addresses = cache.resolve("127.0.0.1");
+		assertSame(addresses, cache.resolve("127.0.0.1"));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.size());
+	}
+
+	public void testEntriesExpire() throws Exception {
+		DnsCache cache = new DnsCache(1);
+
+		cache.resolve("127.0.0.1");
+		Thread.sleep(10);
+		cache.resolve("127.0.0.1");
+		assertEquals(2, cache.getMissCount());
+		assertEquals(0, cache.getHitCount());
+	}
+
+	public void testSizeIsBounded() throws Exception {
+		DnsCache cache = new DnsCache(60000);
+
+		for (int i = 0; i < DnsCache.MAX_ENTRIES + 10; i++) {
+			cache.resolve("10.0." + (i / 256) + "." + (i % 256));
+		}
+		assertEquals(DnsCache.MAX_ENTRIES, cache.size());
+	}
+
+	public void testNewConnectionsUseCache() {
+		DnsCache cache = SharedHttpClient.getDnsCache();
+		long misses = cache.getMissCount();
+
+		assertTrue(Deshortener.deshorten(server.uri("/a")).wasSuccessful());
+		assertEquals(misses + 1, cache.getMissCount());
+
+		// A new client opens new connections but keeps the addresses.
+		Deshortener.shutdown();
+		Deshortener.getCache().clear();
+		misses = cache.getMissCount();
+		assertTrue(Deshortener.deshorten(server.uri("/a")).wasSuccessful());
+		assertEquals(misses, cache.getMissCount());
+		assertEquals(2, server.getConnectionCount());
+	}
+
+	public void testPreconnect() throws Exception {
+		SharedHttpClient.preconnect(new HttpHost("127.0.0.1", server
+				.getPort(), "http"));
+
+		// The stub counts connections on its own thread, only check the
+		// count once a request was served.
+		Result result = Deshortener.deshorten(server.uri("/a"));
+		assertTrue(result.wasSuccessful());
+		assertTrue(result.getHops().get(0).getTiming().isConnectionReused());
+		assertEquals(1, server.getConnectionCount());
+	}
+}
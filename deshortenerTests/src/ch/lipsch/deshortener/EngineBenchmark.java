@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.net.Uri;
+import android.util.Log;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.test.LatencyRecorder;
+
+/**
+ * Benchmarks the resolution engine against stub shorteners with a fixed
+ * latency. Reports throughput and latency percentiles of single lookups,
+ * redirect chains, cold and warm connections and parallel batches, run it
+ * before and after changes to the engine.
+ */
+public class EngineBenchmark extends StubServerTestCase {
+
+	private static final String LOG_TAG = EngineBenchmark.class.getName();
+
+	/** Latency the stub adds to every response. */
+	private static final long RESPONSE_LATENCY_MILLIS = 5;
+
+	/** Latency the stub adds to every new connection. */
+	private static final long CONNECT_LATENCY_MILLIS = 10;
+
+	private static final int WARMUP_LOOKUPS = 20;
+	private static final int LOOKUPS = 200;
+	private static final int[] CHAIN_DEPTHS = { 1, 3, 5 };
+	private static final int BATCH_SIZE = 64;
+	private static final int BATCHES = 5;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		for (int depth : CHAIN_DEPTHS) {
+			for (int hop = 0; hop < depth; hop++) {
+				String next = hop + 1 == depth ? "/final" : "/chain" + depth
+						+ "/" + (hop + 1);
+				server.addRedirect("/chain" + depth + "/" + hop, 301, next);
+			}
+		}
+		for (int link = 0; link < BATCH_SIZE; link++) {
+			server.addRedirect("/batch/" + link, 301, "/final");
+		}
+		server.addPage("/final", "final");
+		server.setResponseLatencyMillis(RESPONSE_LATENCY_MILLIS);
+		server.setConnectLatencyMillis(CONNECT_LATENCY_MILLIS);
+	}
+
+	public void testSingleLookup() {
+		LatencyRecorder recorder = measureLookups(server.uri("/chain1/0"),
+				false);
+		recorder.report(LOG_TAG, "Single lookup");
+	}
+
+	public void testChainedRedirects() {
+		for (int depth : CHAIN_DEPTHS) {
+			LatencyRecorder recorder = measureLookups(server.uri("/chain"
+					+ depth + "/0"), false);
+			recorder.report(LOG_TAG, "Chain of " + depth);
+		}
+	}
+
+	public void testColdVersusWarmConnections() {
+		Uri uri = server.uri("/chain1/0");
+		measureLookups(uri, true).report(LOG_TAG, "Cold connections");
+		measureLookups(uri, false).report(LOG_TAG, "Warm connections");
+	}
+
+	public void testCachedLookup() {
+		Uri uri = server.uri("/chain1/0");
+		assertTrue(Deshortener.deshorten(uri).wasSuccessful());
+		LatencyRecorder recorder = new LatencyRecorder(LOOKUPS);
+		for (int i = 0; i < LOOKUPS; i++) {
+			long start = System.nanoTime();
+			assertTrue(Deshortener.deshorten(uri).wasSuccessful());
+			recorder.record(System.nanoTime() - start);
+		}
+		recorder.report(LOG_TAG, "Cached lookup");
+	}
+
+	public void testParallelBatches() throws InterruptedException {
+		List<Uri> uris = new ArrayList<Uri>();
+		for (int link = 0; link < BATCH_SIZE; link++) {
+			uris.add(server.uri("/batch/" + link));
+		}
+		for (int parallelism = 1; parallelism <= Deshortener.MAX_BATCH_PARALLELISM; parallelism *= 2) {
+			LatencyRecorder recorder = new LatencyRecorder(BATCHES);
+			long totalNanos = 0;
+			for (int batch = 0; batch < BATCHES; batch++) {
+				Deshortener.getCache().clear();
+				long start = System.nanoTime();
+				List<Result> results = Deshortener.deshortenAll(uris,
+						parallelism, null);
+				long nanos = System.nanoTime() - start;
+				for (Result result : results) {
+					assertTrue(result.wasSuccessful());
+				}
+				recorder.record(nanos);
+				totalNanos += nanos;
+			}
+			recorder.report(LOG_TAG, "Batch of " + BATCH_SIZE
+					+ " at parallelism " + parallelism);
+			Log.i(LOG_TAG, "Parallelism " + parallelism + ": "
+					+ Math.round(BATCHES * BATCH_SIZE / (totalNanos / 1e9))
+					+ " lookups/s");
+		}
+	}
+
+	/**
+	 * Measures uncached lookups of the uri.
+	 *
+	 * @param isCold
+	 *            Pooled connections are closed before every lookup.
+	 */
+	private LatencyRecorder measureLookups(Uri uri, boolean isCold) {
+		for (int i = 0; i < WARMUP_LOOKUPS; i++) {
+			Deshortener.getCache().clear();
+			assertTrue(Deshortener.deshorten(uri).wasSuccessful());
+		}
+		LatencyRecorder recorder = new LatencyRecorder(LOOKUPS);
+		for (int i = 0; i < LOOKUPS; i++) {
+			Deshortener.getCache().clear();
+			if (isCold) {
+				SharedHttpClient.closeIdleConnections();
+			}
+			long start = System.nanoTime();
+			assertTrue(Deshortener.deshorten(uri).wasSuccessful());
+			recorder.record(System.nanoTime() - start);
+		}
+		return recorder;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import android.util.Log;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.Strategy;
+import ch.lipsch.deshortener.test.StubHttpServer;
+import ch.lipsch.deshortener.test.StubHttpServer.Response;
+
+public class HeadFirstTests extends StubServerTestCase {
+
+	private static final String LOG_TAG = HeadFirstTests.class.getName();
+	private static final int LOOKUPS = 20;
+
+	public void testUsesHead() {
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addPage("/b", "final");
+
+		Result result = Deshortener.deshorten(server.uri("/a"),
+				Strategy.HEAD_THEN_GET);
+
+		assertTrue(result.wasSuccessful());
+		assertEquals("HEAD", result.getHops().get(0).getMethod());
+		assertEquals("HEAD", result.getHops().get(1).getMethod());
+	}
+
+	public void testGetStrategy() {
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addPage("/b", "final");
+
+		Result result = Deshortener.deshorten(server.uri("/a"), Strategy.GET);
+
+		assertTrue(result.wasSuccessful());
+		assertEquals("GET", result.getHops().get(0).getMethod());
+	}
+
+	public void testFallsBackToGetAndRemembersHost() {
+		server.addResponse("HEAD", "/a", new Response(405, null));
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addPage("/b", "final");
+
+		Result result = Deshortener.deshorten(server.uri("/a"),
+				Strategy.HEAD_THEN_GET);
+		assertTrue(result.wasSuccessful());
+		assertEquals("GET", result.getHops().get(0).getMethod());
+		assertEquals(3, server.getRequestCount());
+
+		// The host is known to reject HEAD, no HEAD request is sent anymore.
+		server.resetCounters();
+		Deshortener.getCache().clear();
+		result = Deshortener.deshorten(server.uri("/a"),
+				Strategy.HEAD_THEN_GET);
+		assertTrue(result.wasSuccessful());
+		assertEquals(2, server.getRequestCount());
+	}
+
+	public void testFallsBackToGetIfHeadIsNotRedirected() {
+		server.addResponse("HEAD", "/a", new Response(200, null));
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+
+		Result result = Deshortener.deshorten(server.uri("/a"),
+				Strategy.HEAD_THEN_GET);
+
+		assertTrue(result.wasSuccessful());
+		assertEquals(server.uri("/b"), result.getDeshortenedUri());
+	}
+
+	/**
+	 * Reports the bytes sent by the server for shorteners and destinations
+	 * which deliver large bodies.
+	 */
+	public void testBytesSaved() {
+		StringBuilder largeBody = new StringBuilder();
+		for (int i = 0; i < 4096; i++) {
+			largeBody.append("<p>Lorem ipsum dolor sit amet</p>\n");
+		}
+		server.addResponse("/a", new Response(301, largeBody.toString())
+				.header("Location", server.uri("/b").toString()));
+		server.addPage("/b", largeBody.toString());
+
+		long getBytes = measureBytes(Strategy.GET);
+		long headBytes = measureBytes(Strategy.HEAD_THEN_GET);
+
+		Log.i(LOG_TAG, "GET: " + getBytes / LOOKUPS + " bytes/lookup");
+		Log.i(LOG_TAG, "HEAD_THEN_GET: " + headBytes / LOOKUPS
+				+ " bytes/lookup");
+		Log.i(LOG_TAG, "Saved: " + (getBytes - headBytes) / LOOKUPS
+				+ " bytes/lookup");
+		assertTrue(headBytes < getBytes);
+	}
+
+	private long measureBytes(Strategy strategy) {
+		server.resetCounters();
+		for (int i = 0; i < LOOKUPS; i++) {
+			Deshortener.getCache().clear();
+			assertTrue(Deshortener.deshorten(server.uri("/a"), strategy)
+					.wasSuccessful());
+		}
+		return server.getBytesWritten();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+
+import android.test.AndroidTestCase;
+
+public class HostLimiterTests extends AndroidTestCase {
+
+	private static final String HOST = "bit.ly";
+
+	private HostLimiter limiter;
+
+	@Override
+	protected void setUp() throws Exception {
+		limiter = new HostLimiter(2);
+	}
+
+	public void testCapsConcurrentLookups() {
+		assertTrue(limiter.tryAcquire(HOST));
+		assertTrue(limiter.tryAcquire(HOST));
+		assertFalse(limiter.tryAcquire(HOST));
+		assertTrue(limiter.tryAcquire("goo.gl"));
+
+		int releaseCount = limiter.getReleaseCount();
+		limiter.release(HOST);
+		assertEquals(releaseCount + 1, limiter.getReleaseCount());
+		assertTrue(limiter.tryAcquire(HOST));
+	}
+
+	public void testOwnLimits() {
+		limiter.setLimits(HOST, 1, 0);
+
+		assertTrue(limiter.tryAcquire(HOST));
+		assertFalse(limiter.tryAcquire(HOST));
+	}
+
+	public void testUnlimitedRate() {
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, limiter.tryReserveRequest(HOST));
+		}
+	}
+
+	public void testSpacesOutRequests() {
+		limiter.setLimits(HOST, 2, 5);
+		long interval = TimeUnit.MILLISECONDS.toNanos(200);
+
+		// A burst of one second worth of requests is sent right away.
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, limiter.tryReserveRequest(HOST));
+		}
+		assertWaits(interval, limiter.tryReserveRequest(HOST));
+		// Nothing was reserved, the next slot is still the same.
+		assertWaits(interval, limiter.tryReserveRequest(HOST));
+		assertEquals(0, limiter.tryReserveRequest("goo.gl"));
+	}
+
+	public void testReservesOnceSlotIsFree() throws InterruptedException {
+		limiter.setLimits(HOST, 2, 5);
+		for (int i = 0; i < 5; i++) {
+			limiter.tryReserveRequest(HOST);
+		}
+
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(limiter
+				.tryReserveRequest(HOST)) + 1);
+		assertEquals(0, limiter.tryReserveRequest(HOST));
+		assertTrue(limiter.tryReserveRequest(HOST) > 0);
+	}
+
+	public void testTracksOnlyLimitedHosts() {
+		for (int i = 0; i < 100; i++) {
+			limiter.tryReserveRequest("host" + i);
+			assertTrue(limiter.tryAcquire("host" + i));
+			limiter.release("host" + i);
+		}
+		assertEquals(0, limiter.getTrackedHostCount());
+
+		limiter.setLimits(HOST, 1, 0);
+		limiter.retryAfter("goo.gl", 1000);
+		assertEquals(2, limiter.getTrackedHostCount());
+
+		limiter.reset();
+		assertEquals(1, limiter.getTrackedHostCount());
+	}
+
+	public void testRetryAfter() {
+		limiter.retryAfter(HOST, 1000);
+
+		assertWaits(TimeUnit.SECONDS.toNanos(1), limiter.tryReserveRequest(HOST));
+		assertEquals(0, limiter.tryReserveRequest("goo.gl"));
+
+		limiter.reset();
+		assertEquals(0, limiter.tryReserveRequest(HOST));
+	}
+
+	public void testRetryAfterSeconds() {
+		HttpResponse response = createResponse(429);
+		response.addHeader("Retry-After", "120");
+
+		assertEquals(120000, HostLimiter.getRetryAfterMillis(response));
+	}
+
+	public void testRetryAfterDate() {
+		HttpResponse response = createResponse(503);
+		Date now = new Date();
+		response.addHeader("Date", DateUtils.formatDate(now));
+		response.addHeader("Retry-After", DateUtils.formatDate(new Date(now
+				.getTime() + 30000)));
+
+		assertEquals(30000, HostLimiter.getRetryAfterMillis(response));
+	}
+
+	public void testRetryAfterDefaults() {
+		assertEquals(HostLimiter.DEFAULT_RETRY_AFTER_MILLIS,
+				HostLimiter.getRetryAfterMillis(createResponse(429)));
+		assertEquals(-1, HostLimiter.getRetryAfterMillis(createResponse(503)));
+
+		HttpResponse response = createResponse(200);
+		response.addHeader("Retry-After", "120");
+		assertEquals(-1, HostLimiter.getRetryAfterMillis(response));
+	}
+
+	private static HttpResponse createResponse(int statusCode) {
+		return new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, "Stub");
+	}
+
+	private static void assertWaits(long expectedNanos, long actualNanos) {
+		assertTrue("Waits " + actualNanos + "ns",
+				actualNanos <= expectedNanos
+						&& actualNanos > expectedNanos
+								- TimeUnit.MILLISECONDS.toNanos(50));
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.Timing;
+
+public class PhaseTimingTests extends StubServerTestCase {
+
+	private static final long RESPONSE_LATENCY_MILLIS = 50;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server.addRedirect("/a", 301, "/b");
+		server.addPage("/b", "final");
+	}
+
+	public void testNewConnectionPhases() {
+		server.setResponseLatencyMillis(RESPONSE_LATENCY_MILLIS);
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+		assertTrue(result.wasSuccessful());
+
+		Timing first = result.getHops().get(0).getTiming();
+		assertFalse(first.isConnectionReused());
+		assertTrue(first.getDnsNanos() >= 0);
+		assertTrue(first.getConnectNanos() >= 0);
+		assertEquals(-1, first.getTlsNanos());
+		assertTrue(first.getConnectionNanos() >= first.getConnectNanos());
+		assertTrue(first.getTimeToFirstByteNanos() >= RESPONSE_LATENCY_MILLIS
+				* 1000000);
+		assertTrue(first.getTotalNanos() >= first.getConnectionNanos()
+				+ first.getTimeToFirstByteNanos());
+		assertEquals(first.getTotalNanos(), result.getHops().get(0)
+				.getDurationNanos());
+	}
+
+	public void testReusedConnection() {
+		Result result = Deshortener.deshorten(server.uri("/a"));
+		assertTrue(result.wasSuccessful());
+
+		Timing second = result.getHops().get(1).getTiming();
+		assertTrue(second.isConnectionReused());
+		assertEquals(-1, second.getDnsNanos());
+		assertEquals(-1, second.getConnectNanos());
+		assertTrue(second.getTimeToFirstByteNanos() >= 0);
+		assertTrue(second.toString().startsWith("reused connection, ttfb "));
+	}
+
+	public void testResultSumsHops() {
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		Timing timing = result.getTiming();
+		Timing first = result.getHops().get(0).getTiming();
+		Timing second = result.getHops().get(1).getTiming();
+		assertFalse(timing.isConnectionReused());
+		assertEquals(first.getStartNanos(), timing.getStartNanos());
+		assertEquals(first.getTotalNanos() + second.getTotalNanos(), timing
+				.getTotalNanos());
+		assertEquals(first.getTimeToFirstByteNanos()
+				+ second.getTimeToFirstByteNanos(), timing
+				.getTimeToFirstByteNanos());
+		assertEquals(first.getConnectNanos(), timing.getConnectNanos());
+		assertTrue(result.toString().contains("; Timing: dns "));
+	}
+
+	public void testUntimedResult() {
+		Result result = new Result(server.uri("/b"));
+		assertSame(Timing.UNKNOWN, result.getTiming());
+		assertEquals("not timed", result.getTiming().toString());
+	}
+}
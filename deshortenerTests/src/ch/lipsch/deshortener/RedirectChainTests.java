@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+
+public class RedirectChainTests extends StubServerTestCase {
+
+	public void testFollowsChain() {
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addRedirect("/b", 302, server.uri("/c").toString());
+		server.addPage("/c", "final");
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		assertTrue(result.wasSuccessful());
+		assertEquals(server.uri("/c"), result.getDeshortenedUri());
+		assertEquals(3, result.getHops().size());
+		assertEquals(301, result.getHops().get(0).getStatusCode());
+		assertEquals(302, result.getHops().get(1).getStatusCode());
+		assertEquals(200, result.getHops().get(2).getStatusCode());
+	}
+
+	public void testStopsAtMalformedLocation() {
+		server.addRedirect("/a", 301, "http://example.com/a b");
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		assertTrue(result.wasSuccessful());
+		assertEquals("http://example.com/a b", result.getDeshortenedUri()
+				.toString());
+		assertEquals(1, result.getHops().size());
+	}
+
+	public void testStopsAtNonHttpLocation() {
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addRedirect("/b", 302, "market://details?id=ch.lipsch");
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		assertTrue(result.wasSuccessful());
+		assertEquals("market://details?id=ch.lipsch", result
+				.getDeshortenedUri().toString());
+		assertEquals(2, result.getHops().size());
+		// The chain is complete and cached.
+		server.resetCounters();
+		assertSame(result, Deshortener.deshorten(server.uri("/a")));
+		assertEquals(0, server.getRequestCount());
+	}
+
+	public void testReusesConnectionOnSameHost() {
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addRedirect("/b", 301, server.uri("/c").toString());
+		server.addPage("/c", "final");
+
+		assertTrue(Deshortener.deshorten(server.uri("/a")).wasSuccessful());
+
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	public void testResolvesRelativeLocation() {
+		server.addRedirect("/a/b", 301, "../c");
+		server.addRedirect("/c", 301, "/d?x=1");
+
+		Result result = Deshortener.deshorten(server.uri("/a/b"));
+
+		assertTrue(result.wasSuccessful());
+		assertEquals(server.uri("/d?x=1"), result.getDeshortenedUri());
+	}
+
+	public void testStopsAtCycle() {
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addRedirect("/b", 301, server.uri("/a").toString());
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		assertTrue(result.wasSuccessful());
+		assertEquals(server.uri("/b"), result.getDeshortenedUri());
+		assertEquals(2, result.getHops().size());
+	}
+
+	public void testStopsAtMaxRedirects() {
+		for (int i = 0; i < 5; i++) {
+			server.addRedirect("/" + i, 301, server.uri("/" + (i + 1))
+					.toString());
+		}
+
+		Deshortener.setMaxRedirects(3);
+		try {
+			Result result = Deshortener.deshorten(server.uri("/0"));
+			assertTrue(result.wasSuccessful());
+			assertEquals(server.uri("/3"), result.getDeshortenedUri());
+			assertEquals(3, result.getHops().size());
+		} finally {
+			Deshortener.setMaxRedirects(Deshortener.DEFAULT_MAX_REDIRECTS);
+		}
+	}
+
+	public void testNoRedirect() {
+		server.addPage("/a", "no shortener");
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		assertEquals(ResultType.CANNOT_DESHORTEN, result.getResultType());
+	}
+}
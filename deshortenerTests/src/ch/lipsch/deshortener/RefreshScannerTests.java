@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpHost;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+import ch.lipsch.deshortener.test.StubHttpServer;
+
+public class RefreshScannerTests extends AndroidTestCase {
+
+	private static final int MAX_BYTES = 16 * 1024;
+
+	public void testMetaRefresh() throws IOException {
+		assertEquals("http://example.com/a?b=1&c=2",
+				find("<html><head><META HTTP-EQUIV=\"Refresh\" "
+						+ "CONTENT=\"0; URL=http://example.com/a?b=1&amp;c=2\">"));
+		assertEquals("http://example.com/", find("<meta content='5;url="
+				+ "http://example.com/' http-equiv='refresh' />"));
+	}
+
+	public void testScriptLocation() throws IOException {
+		assertEquals("http://example.com/",
+				find("<script>window.location.href = \"http:\\/\\/example.com\\/\";</script>"));
+		assertEquals("/relative", find("<script>location.replace('/relative')"));
+	}
+
+	public void testIgnoresLocationOutsideScript() throws IOException {
+		assertNull(find("<div data-location=\"http://example.com/\"></div>"));
+		assertNull(find("<p>Set location = 'http://example.com/' to move</p>"
+				+ "<script></script>"));
+		assertNull(find("<script></script>location='http://example.com/'"));
+	}
+
+	public void testIgnoresOtherIdentifiers() throws IOException {
+		assertNull(find("<script>var geolocation = 'http://example.com/';"
+				+ "allocation='/a'; this.location = \"/b\";</script>"));
+		assertEquals("/c", find("<SCRIPT type=\"text/javascript\">"
+				+ "var allocation='/a';\ndocument.location='/c'</SCRIPT>"));
+	}
+
+	public void testScriptAcrossChunks() throws IOException {
+		StringBuilder page = new StringBuilder("<script>");
+		for (int i = 0; i < 3 * 2048; i++) {
+			page.append(' ');
+		}
+		page.append("location.href='http://example.com/'</script>");
+		assertEquals("http://example.com/", find(page.toString()));
+	}
+
+	public void testNoTarget() throws IOException {
+		assertNull(find("<html><meta charset=\"utf-8\"><a href=\"x\">x</a>"));
+	}
+
+	public void testTargetAcrossChunks() throws IOException {
+		StringBuilder page = new StringBuilder();
+		for (int i = 0; i < 2040; i++) {
+			page.append(' ');
+		}
+		page.append("<meta http-equiv=\"refresh\" content=\"0;url=http://example.com/\">");
+		assertEquals("http://example.com/", find(page.toString()));
+	}
+
+	public void testStopsAtBudget() throws IOException {
+		StringBuilder page = new StringBuilder();
+		for (int i = 0; i < 2 * MAX_BYTES; i++) {
+			page.append(' ');
+		}
+		page.append("<meta http-equiv=\"refresh\" content=\"0;url=http://example.com/\">");
+		CountingInputStream in = new CountingInputStream(page.toString());
+
+		assertNull(RefreshScanner.findTarget(in, MAX_BYTES));
+		assertEquals(MAX_BYTES, in.count);
+	}
+
+	public void testStopsReadingWhenFound() throws IOException {
+		StringBuilder page = new StringBuilder(
+				"<meta http-equiv=\"refresh\" content=\"0;url=http://example.com/\">");
+		for (int i = 0; i < MAX_BYTES; i++) {
+			page.append(' ');
+		}
+		CountingInputStream in = new CountingInputStream(page.toString());
+
+		assertNotNull(RefreshScanner.findTarget(in, MAX_BYTES));
+		assertTrue(in.count < MAX_BYTES / 2);
+	}
+
+	public void testDeshortenMetaRefresh() throws Exception {
+		StubHttpServer server = startProxy();
+		try {
+			server.addPage("http://canurl.com/a", "<html><meta "
+					+ "http-equiv=\"refresh\" content=\"0;url=/target\">");
+
+			Result result = Deshortener.deshorten(Uri
+					.parse("http://canurl.com/a"));
+
+			assertEquals(ResultType.SUCCESS, result.getResultType());
+			assertEquals("http://canurl.com/target", result
+					.getDeshortenedUri().toString());
+			assertEquals(200, result.getHops().get(0).getStatusCode());
+		} finally {
+			stopProxy(server);
+		}
+	}
+
+	public void testDeshortenMetaRefreshOnLaterHop() throws Exception {
+		StubHttpServer server = startProxy();
+		try {
+			server.addRedirect("http://bit.ly/a", 301, "http://canurl.com/a");
+			server.addPage("http://canurl.com/a", "<html><meta "
+					+ "http-equiv=\"refresh\" content=\"0;url=/target\">");
+
+			Result result = Deshortener.deshorten(Uri
+					.parse("http://bit.ly/a"));
+
+			assertEquals(ResultType.SUCCESS, result.getResultType());
+			assertEquals("http://canurl.com/target", result
+					.getDeshortenedUri().toString());
+			assertEquals("GET", result.getHops().get(1).getMethod());
+		} finally {
+			stopProxy(server);
+		}
+	}
+
+	public void testDoesNotScanUnknownHosts() throws Exception {
+		StubHttpServer server = startProxy();
+		try {
+			server.addPage("http://example.com/a", "<html><meta "
+					+ "http-equiv=\"refresh\" content=\"0;url=/target\">");
+
+			Result result = Deshortener.deshorten(Uri
+					.parse("http://example.com/a"));
+
+			assertEquals(ResultType.CANNOT_DESHORTEN, result.getResultType());
+		} finally {
+			stopProxy(server);
+		}
+	}
+
+	private static StubHttpServer startProxy() throws IOException {
+		StubHttpServer server = new StubHttpServer().start();
+		Deshortener.getCache().clear();
+		SharedHttpClient.setProxy(new HttpHost("127.0.0.1", server.getPort()));
+		return server;
+	}
+
+	private static void stopProxy(StubHttpServer server) {
+		SharedHttpClient.setProxy(null);
+		Deshortener.shutdown();
+		server.stop();
+	}
+
+	private static String find(String page) throws IOException {
+		return RefreshScanner.findTarget(new CountingInputStream(page),
+				MAX_BYTES);
+	}
+
+	private static final class CountingInputStream extends InputStream {
+
+		private final InputStream in;
+		int count = 0;
+
+		CountingInputStream(String content) {
+			in = new ByteArrayInputStream(content.getBytes());
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = in.read();
+			if (read != -1) {
+				count++;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			int read = in.read(buffer, offset, length);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.test.StubHttpServer;
+
+public class ResolutionCacheTests extends AndroidTestCase {
+
+	private static final String LOG_TAG = ResolutionCacheTests.class
+			.getName();
+
+	private static final Uri SHORT_URI = Uri.parse("http://bit.ly/a");
+	private static final Result RESULT = new Result(
+			Uri.parse("http://www.google.com"));
+
+	public void testHitAndMiss() {
+		ResolutionCache cache = new ResolutionCache(10);
+
+		assertNull(cache.get(SHORT_URI));
+		cache.put(SHORT_URI, RESULT, 60000);
+		assertSame(RESULT, cache.get(SHORT_URI));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	public void testEvictsLeastRecentlyUsed() {
+		ResolutionCache cache = new ResolutionCache(2);
+		Uri uri1 = Uri.parse("http://bit.ly/1");
+		Uri uri2 = Uri.parse("http://bit.ly/2");
+		Uri uri3 = Uri.parse("http://bit.ly/3");
+
+		cache.put(uri1, RESULT, 60000);
+		cache.put(uri2, RESULT, 60000);
+		cache.get(uri1);
+		cache.put(uri3, RESULT, 60000);
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNotNull(cache.get(uri1));
+		assertNull(cache.get(uri2));
+		assertNotNull(cache.get(uri3));
+	}
+
+	public void testExpires() throws InterruptedException {
+		ResolutionCache cache = new ResolutionCache(10);
+
+		cache.put(SHORT_URI, RESULT, 50);
+		assertNotNull(cache.get(SHORT_URI));
+		Thread.sleep(100);
+		assertNull(cache.get(SHORT_URI));
+	}
+
+	public void testZeroTtlIsNotCached() {
+		ResolutionCache cache = new ResolutionCache(10);
+
+		cache.put(SHORT_URI, RESULT, 0);
+		assertNull(cache.get(SHORT_URI));
+	}
+
+	public void testTtlByStatus() {
+		assertEquals(ResolutionCache.PERMANENT_REDIRECT_TTL_MILLIS,
+				ResolutionCache.computeTtl(createResponse(301)));
+		assertEquals(ResolutionCache.TEMPORARY_REDIRECT_TTL_MILLIS,
+				ResolutionCache.computeTtl(createResponse(302)));
+		assertEquals(ResolutionCache.TEMPORARY_REDIRECT_TTL_MILLIS,
+				ResolutionCache.computeTtl(createResponse(303)));
+	}
+
+	public void testTtlByCacheControl() {
+		HttpResponse response = createResponse(301);
+		response.addHeader("Cache-Control", "private, max-age=90");
+		assertEquals(90000, ResolutionCache.computeTtl(response));
+
+		response = createResponse(301);
+		response.addHeader("Cache-Control", "no-cache");
+		assertEquals(0, ResolutionCache.computeTtl(response));
+	}
+
+	public void testTtlByExpires() {
+		HttpResponse response = createResponse(302);
+		response.addHeader("Date", "Sun, 06 Nov 1994 08:49:37 GMT");
+		response.addHeader("Expires", "Sun, 06 Nov 1994 08:50:37 GMT");
+		assertEquals(60000, ResolutionCache.computeTtl(response));
+
+		response = createResponse(302);
+		response.addHeader("Expires", "0");
+		assertEquals(0, ResolutionCache.computeTtl(response));
+	}
+
+	public void testRepeatedLookupIsCached() throws Exception {
+		StubHttpServer server = new StubHttpServer().start();
+		try {
+			Deshortener.getCache().clear();
+			server.addRedirect("/a", 301, server.uri("/b").toString());
+			server.addPage("/b", "final");
+
+			Result first = Deshortener.deshorten(server.uri("/a"));
+			int requestCount = server.getRequestCount();
+
+			long start = System.nanoTime();
+			Result second = Deshortener.deshorten(server.uri("/a"));
+			long micros = (System.nanoTime() - start) / 1000;
+			Log.i(LOG_TAG, "Cached lookup took " + micros + "us");
+
+			assertSame(first, second);
+			assertEquals(requestCount, server.getRequestCount());
+		} finally {
+			Deshortener.shutdown();
+			server.stop();
+		}
+	}
+
+	public void testColdLookupCountsOneMiss() throws Exception {
+		StubHttpServer server = new StubHttpServer().start();
+		try {
+			ResolutionCache cache = Deshortener.getCache();
+			cache.clear();
+			server.addRedirect("/a", 301, server.uri("/b").toString());
+			server.addPage("/b", "final");
+			long misses = cache.getMissCount();
+			long hits = cache.getHitCount();
+
+			assertTrue(Deshortener.deshorten(server.uri("/a"))
+					.wasSuccessful());
+
+			assertEquals(misses + 1, cache.getMissCount());
+			assertEquals(hits, cache.getHitCount());
+		} finally {
+			Deshortener.shutdown();
+			server.stop();
+		}
+	}
+
+	private static HttpResponse createResponse(int status) {
+		return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "Redirect");
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class ShortenerRegistryTests extends AndroidTestCase {
+
+	private static final String LOG_TAG = ShortenerRegistryTests.class
+			.getName();
+	private static final int LOOKUPS = 1000000;
+
+	private static final String SHORTENERS = "# Comment\n"
+			+ "bit.ly head\n\n" + "cli.gs preview\n"
+			+ ".trim.example get\n";
+
+	public void testExactMatch() throws IOException {
+		ShortenerRegistry registry = load();
+
+		assertEquals(3, registry.size());
+		assertTrue(registry.isShortener("bit.ly"));
+		assertTrue(registry.isShortener("BIT.ly"));
+		assertFalse(registry.isShortener("www.bit.ly"));
+		assertFalse(registry.isShortener("it.ly"));
+		assertFalse(registry.isShortener(null));
+	}
+
+	public void testSuffixMatch() throws IOException {
+		ShortenerRegistry registry = load();
+
+		assertTrue(registry.isShortener("trim.example"));
+		assertTrue(registry.isShortener("a.b.Trim.example"));
+		assertFalse(registry.isShortener("xtrim.example"));
+		assertFalse(registry.isShortener("example"));
+	}
+
+	public void testAttributes() throws IOException {
+		ShortenerRegistry registry = load();
+
+		assertEquals(ShortenerRegistry.SUPPORTS_HEAD, registry
+				.getFlags("bit.ly"));
+		assertTrue(registry.hasFlag("cli.gs", ShortenerRegistry.PREVIEW));
+		assertFalse(registry.hasFlag("bit.ly", ShortenerRegistry.PREVIEW));
+		assertTrue(registry.hasFlag("x.trim.example",
+				ShortenerRegistry.NEEDS_GET));
+		assertEquals(ShortenerRegistry.UNKNOWN, registry
+				.getFlags("google.com"));
+	}
+
+	public void testUnknownAttribute() throws IOException {
+		try {
+			ShortenerRegistry.load(new StringReader("bit.ly fast\n"));
+			fail("expected exception not catched.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testDefaultRegistry() {
+		ShortenerRegistry registry = ShortenerRegistry.getDefault();
+
+		assertTrue(registry.isShortener("bit.ly"));
+		assertTrue(registry.isShortener("t.co"));
+		assertTrue(registry.hasFlag("cli.gs", ShortenerRegistry.PREVIEW));
+		assertTrue(registry.hasFlag("beam.to", ShortenerRegistry.PREVIEW));
+	}
+
+	/**
+	 * Reports the time to load the bundled registry and the cost of hits,
+	 * suffix hits and misses.
+	 */
+	public void testLoadAndLookupCost() throws IOException {
+		long start = System.nanoTime();
+		ShortenerRegistry registry = ShortenerRegistry.load(new StringReader(
+				createLargeList(1000)));
+		long loadMicros = (System.nanoTime() - start) / 1000;
+		Log.i(LOG_TAG, "Loading 1000 hosts took " + loadMicros + "us");
+
+		String[] hosts = { "host500.example", "www.host500.example",
+				"unknown.example" };
+		for (String host : hosts) {
+			// Warm up
+			int found = 0;
+			for (int i = 0; i < LOOKUPS; i++) {
+				found += registry.getFlags(host);
+			}
+			start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; i++) {
+				found += registry.getFlags(host);
+			}
+			long nanos = (System.nanoTime() - start) / LOOKUPS;
+			Log.i(LOG_TAG, "Lookup of " + host + ": " + nanos + "ns ("
+					+ found + ")");
+		}
+	}
+
+	public void testPopularHosts() throws IOException {
+		ShortenerRegistry registry = ShortenerRegistry.load(new StringReader(
+				"t.co head popular\n" + "cli.gs\n" + ".trim.example popular\n"
+						+ "bit.ly popular\n"));
+
+		assertEquals(Arrays.asList("t.co", "bit.ly"), registry
+				.getHosts(ShortenerRegistry.POPULAR));
+		assertFalse(ShortenerRegistry.getDefault().getHosts(
+				ShortenerRegistry.POPULAR).isEmpty());
+	}
+
+	private static String createLargeList(int hosts) {
+		StringBuilder list = new StringBuilder();
+		for (int i = 0; i < hosts; i++) {
+			list.append(i % 2 == 0 ? "." : "").append("host").append(i)
+					.append(".example head\n");
+		}
+		return list.toString();
+	}
+
+	private static ShortenerRegistry load() throws IOException {
+		return ShortenerRegistry.load(new StringReader(SHORTENERS));
+	}
+}
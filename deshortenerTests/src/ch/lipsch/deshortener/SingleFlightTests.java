@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+
+public class SingleFlightTests extends StubServerTestCase {
+
+	private static final int CALLERS = 8;
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server.addRedirect("/a", 301, server.uri("/b").toString());
+		server.addPage("/b", "final");
+		server.setResponseLatencyMillis(300);
+		executor = Executors.newFixedThreadPool(CALLERS);
+	}
+
+	public void testConcurrentLookupsAreCoalesced() throws Exception {
+		long coalescedBefore = Deshortener.getCoalescedCount();
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (int i = 0; i < CALLERS; i++) {
+			// Differently spelled but equal uris
+			final Uri uri = i % 2 == 0 ? server.uri("/a") : Uri.parse(server
+					.uri("/a").toString().replace("http://", "HTTP://"));
+			futures.add(executor.submit(new Callable<Result>() {
+				public Result call() {
+					return Deshortener.deshorten(uri);
+				}
+			}));
+		}
+
+		Result first = futures.get(0).get();
+		for (Future<Result> future : futures) {
+			assertSame(first, future.get());
+		}
+		assertEquals(server.uri("/b"), first.getDeshortenedUri());
+		// One HEAD request per hop
+		assertEquals(2, server.getRequestCount());
+		assertEquals(CALLERS - 1, Deshortener.getCoalescedCount()
+				- coalescedBefore);
+	}
+
+	public void testWaiterSurvivesCancelledOwner() throws Exception {
+		PendingResult owner = Deshortener.deshortenAsync(server.uri("/a"),
+				null);
+		Thread.sleep(100);
+		Future<Result> waiter = executor.submit(new Callable<Result>() {
+			public Result call() {
+				return Deshortener.deshorten(server.uri("/a"));
+			}
+		});
+		Thread.sleep(100);
+		owner.cancel(true);
+
+		Result result = waiter.get(5, TimeUnit.SECONDS);
+		assertEquals(server.uri("/b"), result.getDeshortenedUri());
+	}
+
+	public void testWaiterHonoursItsOwnDeadline() throws Exception {
+		server.setResponseLatencyMillis(1000);
+		PendingResult owner = Deshortener.deshortenAsync(server.uri("/a"),
+				null);
+		Thread.sleep(100);
+		Deshortener.setTimeouts(Deshortener.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+				Deshortener.DEFAULT_SOCKET_TIMEOUT_MILLIS, 200);
+
+		Result result = Deshortener.deshorten(server.uri("/a"));
+
+		assertEquals(ResultType.TIMEOUT, result.getResultType());
+		assertFalse(owner.isDone());
+		assertEquals(server.uri("/b"), owner.get(5, TimeUnit.SECONDS)
+				.getDeshortenedUri());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		super.tearDown();
+	}
+}
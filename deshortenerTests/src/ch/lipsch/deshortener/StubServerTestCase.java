@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import android.test.AndroidTestCase;
+import ch.lipsch.deshortener.test.StubHttpServer;
+
+/**
+ * Base of tests running lookups against a local {@link StubHttpServer}.
+ * Every test starts with a new server, a new client, an empty cache and no
+ * state about hosts left over from earlier tests. Subclasses add their
+ * responses to {@link #server} after calling {@link #setUp()}.
+ */
+public abstract class StubServerTestCase extends AndroidTestCase {
+
+	protected StubHttpServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new StubHttpServer().start();
+		Deshortener.shutdown();
+		Deshortener.getCache().clear();
+		Deshortener.resetHostState();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Deshortener.setTimeouts(Deshortener.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+				Deshortener.DEFAULT_SOCKET_TIMEOUT_MILLIS,
+				Deshortener.DEFAULT_DEADLINE_MILLIS);
+		Deshortener.shutdown();
+		Deshortener.resetHostState();
+		server.stop();
+	}
+}
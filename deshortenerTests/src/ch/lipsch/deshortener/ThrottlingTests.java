@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.net.Uri;
+import ch.lipsch.deshortener.Deshortener.Callback;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.DeshortenerStats.Snapshot;
+import ch.lipsch.deshortener.test.StubHttpServer;
+
+/**
+ * Runs lookups against stub shorteners which throttle their clients or are
+ * slow to answer.
+ */
+public class ThrottlingTests extends StubServerTestCase {
+
+	private static final int LINKS = 10;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		addLinks(server);
+		Deshortener.getStats().reset();
+	}
+
+	public void testHonorsRetryAfter() {
+		server.throttleNextRequests(1, "1");
+
+		long start = System.nanoTime();
+		Result result = Deshortener.deshorten(server.uri("/0"));
+		long nanos = System.nanoTime() - start;
+
+		assertTrue(result.wasSuccessful());
+		assertEquals(server.uri("/long/0"), result.getDeshortenedUri());
+		assertEquals(2, result.getHops().size());
+		assertEquals(3, server.getRequestCount());
+		assertTrue(nanos >= TimeUnit.MILLISECONDS.toNanos(900));
+		assertEquals(1, Deshortener.getStats().snapshot().getThrottledCount(
+				server.uri("/").getHost()));
+	}
+
+	public void testThrottlingDoesNotOpenCircuit() {
+		for (int link = 0; link < LINKS; link++) {
+			server.throttleNextRequests(2, "0");
+			assertTrue(Deshortener.deshorten(server.uri("/" + link))
+					.wasSuccessful());
+		}
+	}
+
+	public void testGivesUpWhenThrottledTooOften() {
+		server.throttleNextRequests(100, "0");
+
+		Result result = Deshortener.deshorten(server.uri("/0"));
+
+		assertFalse(result.wasSuccessful());
+		assertTrue(server.getRequestCount() <= 4);
+	}
+
+	public void testRateLimit() throws InterruptedException {
+		String hostKey = HostLimiter.getHostKey(server.uri("/"));
+		Deshortener.setHostLimits(hostKey, 4, 10);
+		List<Uri> uris = new ArrayList<Uri>();
+		for (int link = 0; link < LINKS; link++) {
+			uris.add(server.uri("/" + link));
+		}
+
+		long start = System.nanoTime();
+		List<Result> results = Deshortener.deshortenAll(uris);
+		long nanos = System.nanoTime() - start;
+
+		for (Result result : results) {
+			assertTrue(result.wasSuccessful());
+		}
+		// A burst of 10 requests, the other 10 at 10 requests per second
+		assertTrue(nanos >= TimeUnit.MILLISECONDS.toNanos(900));
+		Snapshot stats = Deshortener.getStats().snapshot();
+		assertTrue(stats.getQueueDelayNanos(server.uri("/").getHost(), 99) > 0);
+		Deshortener.setHostLimits(hostKey, Deshortener.MAX_CONCURRENT_PER_HOST,
+				0);
+	}
+
+	public void testSlowHostDoesNotStarveOthers() throws Exception {
+		StubHttpServer slowServer = new StubHttpServer().start();
+		addLinks(slowServer);
+		try {
+			slowServer.setResponseLatencyMillis(1000);
+			List<Uri> uris = new ArrayList<Uri>();
+			for (int link = 0; link < LINKS; link++) {
+				uris.add(slowServer.uri("/" + link));
+			}
+			for (int link = 0; link < LINKS; link++) {
+				uris.add(server.uri("/" + link));
+			}
+			final long start = System.nanoTime();
+			final String fastHost = HostLimiter.getHostKey(server.uri("/"));
+			final AtomicLong lastFastResult = new AtomicLong();
+
+			Deshortener.deshortenAll(uris, 8, new Callback() {
+				public void onResult(Uri uri, Result result) {
+					if (fastHost.equals(HostLimiter.getHostKey(uri))) {
+						lastFastResult.set(System.nanoTime() - start);
+					}
+				}
+			});
+
+			// All lookups of the fast host finished before the first lookup
+			// of the slow one.
+			assertTrue(lastFastResult.get() < TimeUnit.MILLISECONDS
+					.toNanos(1000));
+			// Waiting in the batch is not mixed up with waiting for the rate
+			// limit, none of the hosts has one.
+			Snapshot stats = Deshortener.getStats().snapshot();
+			String host = server.uri("/").getHost();
+			assertTrue(stats.getBatchDelayNanos(host, 99) > TimeUnit.MILLISECONDS
+					.toNanos(500));
+			assertTrue(stats.getQueueDelayNanos(host, 99) < TimeUnit.MILLISECONDS
+					.toNanos(10));
+		} finally {
+			slowServer.stop();
+		}
+	}
+
+	private static void addLinks(StubHttpServer stubServer) {
+		for (int link = 0; link < LINKS; link++) {
+			stubServer.addRedirect("/" + link, 301, "/long/" + link);
+			stubServer.addPage("/long/" + link, "final");
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.Deshortener.ResultType;
+
+public class TimeoutTests extends StubServerTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		for (int hop = 1; hop < 5; hop++) {
+			server.addRedirect("/" + hop, 301, "/" + (hop + 1));
+		}
+		server.addRedirect("/5", 301, "/final");
+		server.addPage("/final", "final");
+	}
+
+	public void testSocketTimeout() {
+		server.setResponseLatencyMillis(10000);
+		Deshortener.setTimeouts(1000, 300, 10000);
+
+		long start = System.nanoTime();
+		Result result = Deshortener.deshorten(server.uri("/1"));
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertEquals(ResultType.TIMEOUT, result.getResultType());
+		assertTrue("took " + millis + "ms", millis < 2000);
+	}
+
+	public void testDeadlineOnFirstHop() {
+		server.setResponseLatencyMillis(10000);
+		Deshortener.setTimeouts(1000, 20000, 300);
+
+		long start = System.nanoTime();
+		Result result = Deshortener.deshorten(server.uri("/1"));
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertEquals(ResultType.TIMEOUT, result.getResultType());
+		assertTrue("took " + millis + "ms", millis < 2000);
+	}
+
+	public void testDeadlineKeepsPartialChain() {
+		server.setResponseLatencyMillis(200);
+		Deshortener.setTimeouts(1000, 1000, 500);
+
+		Result result = Deshortener.deshorten(server.uri("/1"));
+
+		// The chain is cut short but the uri reached so far is delivered.
+		assertTrue(result.wasSuccessful());
+		assertFalse(server.uri("/final").equals(result.getDeshortenedUri()));
+		assertFalse(result.getHops().isEmpty());
+		// A partial chain must not be cached.
+		assertEquals(0, Deshortener.getCache().size());
+	}
+
+	public void testFastChainIsNotAffected() {
+		Deshortener.setTimeouts(1000, 1000, 5000);
+
+		Result result = Deshortener.deshorten(server.uri("/1"));
+
+		assertEquals(server.uri("/final"), result.getDeshortenedUri());
+	}
+}
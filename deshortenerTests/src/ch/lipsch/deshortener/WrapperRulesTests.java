@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener;
+
+import org.apache.http.HttpHost;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import ch.lipsch.deshortener.Deshortener.Result;
+import ch.lipsch.deshortener.test.StubHttpServer;
+
+public class WrapperRulesTests extends AndroidTestCase {
+
+	private static final String TARGET = "http://example.com/path?a=1&b=2";
+
+	public void testGoogle() {
+		assertEquals(Uri.parse(TARGET), WrapperRules.unwrap(Uri
+				.parse("http://www.google.com/url?sa=t&q="
+						+ Uri.encode(TARGET))));
+		assertEquals(Uri.parse(TARGET), WrapperRules.unwrap(Uri
+				.parse("https://www.google.ch/url?url=" + Uri.encode(TARGET))));
+	}
+
+	public void testIsWrapper() {
+		assertTrue(WrapperRules.isWrapper(Uri
+				.parse("https://steamcommunity.com/linkfilter/")));
+		assertFalse(WrapperRules.isWrapper(Uri
+				.parse("https://steamcommunity.com/id/x")));
+		assertFalse(WrapperRules.isWrapper(Uri.parse("http://example.com/")));
+	}
+
+	public void testFacebook() {
+		assertEquals(Uri.parse(TARGET), WrapperRules.unwrap(Uri
+				.parse("https://l.facebook.com/l.php?u=" + Uri.encode(TARGET)
+						+ "&h=AT0")));
+	}
+
+	public void testSafeLinks() {
+		assertEquals(Uri.parse(TARGET), WrapperRules.unwrap(Uri
+				.parse("https://eur01.safelinks.protection.outlook.com/?url="
+						+ Uri.encode(TARGET) + "&data=01")));
+	}
+
+	public void testNested() {
+		String facebook = "https://l.facebook.com/l.php?u="
+				+ Uri.encode(TARGET);
+		assertEquals(Uri.parse(TARGET), WrapperRules.unwrap(Uri
+				.parse("http://www.google.com/url?q=" + Uri.encode(facebook))));
+	}
+
+	public void testNoWrapper() {
+		assertNull(WrapperRules.unwrap(Uri.parse("http://bit.ly/abc")));
+		assertNull(WrapperRules.unwrap(Uri
+				.parse("http://www.google.com/search?q=" + Uri.encode(TARGET))));
+		assertNull(WrapperRules.unwrap(Uri.parse("http://notgoogle.com/url?q="
+				+ Uri.encode(TARGET))));
+		// Only http and https targets are followed
+		assertNull(WrapperRules.unwrap(Uri
+				.parse("http://www.google.com/url?q=javascript:alert(1)")));
+	}
+
+	public void testDeshortenWithoutRequest() throws Exception {
+		StubHttpServer server = new StubHttpServer().start();
+		try {
+			Deshortener.getCache().clear();
+			SharedHttpClient.setProxy(new HttpHost("127.0.0.1", server
+					.getPort()));
+
+			Result result = Deshortener.deshorten(Uri
+					.parse("http://www.google.com/url?q=" + Uri.encode(TARGET)));
+
+			assertEquals(Uri.parse(TARGET), result.getDeshortenedUri());
+			assertTrue(result.getHops().isEmpty());
+			assertEquals(0, server.getRequestCount());
+		} finally {
+			SharedHttpClient.setProxy(null);
+			Deshortener.shutdown();
+			server.stop();
+		}
+	}
+}
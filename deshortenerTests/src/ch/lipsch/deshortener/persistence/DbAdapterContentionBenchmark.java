@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures the read throughput of trust checks with a growing number of
+ * reader threads while a writer keeps toggling trust.
+ */
+public class DbAdapterContentionBenchmark extends AndroidTestCase {
+
+	private static final String LOG_TAG = DbAdapterContentionBenchmark.class
+			.getName();
+	private static final int DOMAINS = 1000;
+	private static final int READS_PER_THREAD = 20000;
+	private static final int MAX_THREADS = 8;
+
+	private DbAdapter dbAdapter;
+
+	@Override
+	protected void setUp() throws Exception {
+		dbAdapter = new DbAdapter(getContext()).open();
+		dbAdapter.removeAllDomains();
+		List<String> domains = new ArrayList<String>();
+		for (int i = 0; i < DOMAINS; i++) {
+			domains.add("domain" + i + ".ch");
+		}
+		dbAdapter.addDomains(domains);
+	}
+
+	public void testReadThroughputScales() throws InterruptedException {
+		final AtomicBoolean isWriting = new AtomicBoolean(true);
+		final AtomicInteger writes = new AtomicInteger();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				while (isWriting.get()) {
+					dbAdapter.addDomain("toggled.ch");
+					dbAdapter.removeDomain("toggled.ch");
+					writes.incrementAndGet();
+				}
+			}
+		};
+		writer.start();
+
+		double singleThroughput = 0;
+		double bestThroughput = 0;
+		try {
+			for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+				double throughput = measureReads(threads);
+				Log.i(LOG_TAG, threads + " reader threads: "
+						+ Math.round(throughput) + " reads/s");
+				if (threads == 1) {
+					singleThroughput = throughput;
+				}
+				bestThroughput = Math.max(bestThroughput, throughput);
+			}
+		} finally {
+			isWriting.set(false);
+			writer.join();
+		}
+		Log.i(LOG_TAG, "Concurrent writes: " + writes.get());
+
+		if (Runtime.getRuntime().availableProcessors() > 1) {
+			assertTrue(bestThroughput > 1.5 * singleThroughput);
+		}
+	}
+
+	/**
+	 * @return The reads per second of all threads together.
+	 */
+	private double measureReads(int threads) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			Thread reader = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < READS_PER_THREAD; i++) {
+						int domain = (offset + i) % DOMAINS;
+						if (!dbAdapter.isTrusted(Uri.parse("http://domain"
+								+ domain + ".ch/"))) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+			reader.start();
+			readers.add(reader);
+		}
+
+		long startNanos = System.nanoTime();
+		start.countDown();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+		assertEquals(0, failures.get());
+		return threads * READS_PER_THREAD / seconds;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dbAdapter.removeAllDomains();
+		dbAdapter.close();
+	}
+}
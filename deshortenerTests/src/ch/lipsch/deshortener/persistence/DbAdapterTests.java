@@ -1,10 +1,24 @@
 package ch.lipsch.deshortener.persistence;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 public class DbAdapterTests extends AndroidTestCase {
 
+	private static final String LOG_TAG = DbAdapterTests.class.getName();
+	private static final int LOOKUPS = 1000;
+
 	private DbAdapter dbAdapter;
 
 	@Override
@@ -105,6 +119,329 @@ public class DbAdapterTests extends AndroidTestCase {
 
 		closeDbAdapter();
 	}
+
+	public void testTrustSurvivesReopen() {
+		openDbAdapter();
+
+		String domain = "reopen.ch";
+		Uri uri = Uri.parse("http://reopen.ch/path");
+		dbAdapter.addDomain(domain);
+		dbAdapter.addUri(uri);
+		closeDbAdapter();
+
+		openDbAdapter();
+		assertTrue(dbAdapter.isDomainTrusted(domain));
+		assertTrue(dbAdapter.isUriTrusted(uri));
+		dbAdapter.removeDomain(domain);
+		dbAdapter.removeUri(uri);
+		closeDbAdapter();
+
+		openDbAdapter();
+		assertFalse(dbAdapter.isDomainTrusted(domain));
+		assertFalse(dbAdapter.isUriTrusted(uri));
+
+		closeDbAdapter();
+	}
+
+	public void testTrustCheckWithQuote() {
+		openDbAdapter();
+
+		String domain = "it's.ch";
+		assertFalse(dbAdapter.isDomainTrusted(domain));
+		dbAdapter.addDomain(domain);
+		assertTrue(dbAdapter.isDomainTrusted(domain));
+		dbAdapter.removeDomain(domain);
+
+		closeDbAdapter();
+	}
+
+	public void testIsTrusted() {
+		openDbAdapter();
+
+		Uri uri = Uri.parse("http://combined.ch/path");
+		assertFalse(dbAdapter.isTrusted(uri));
+		dbAdapter.addUri(uri);
+		assertTrue(dbAdapter.isTrusted(uri));
+		assertFalse(dbAdapter.isTrusted(Uri.parse("http://combined.ch/other")));
+		dbAdapter.addDomain("combined.ch");
+		assertTrue(dbAdapter.isTrusted(Uri.parse("http://combined.ch/other")));
+		dbAdapter.removeUri(uri);
+		dbAdapter.removeDomain("combined.ch");
+
+		closeDbAdapter();
+	}
+
+	public void testAddDomainTwice() {
+		openDbAdapter();
+
+		String domain = "twice.ch";
+		dbAdapter.addDomain(domain);
+		dbAdapter.addDomain(domain);
+		assertTrue(dbAdapter.isDomainTrusted(domain));
+		dbAdapter.removeDomain(domain);
+		assertFalse(dbAdapter.isDomainTrusted(domain));
+
+		closeDbAdapter();
+	}
+
+	/**
+	 * Tables too large for the in-memory index are queried through the
+	 * unique index, lookups must not get slower with the table size. The
+	 * query plan is asserted, the lookup times are only logged.
+	 */
+	public void testTrustLookupStaysFlat() {
+		openDbAdapter();
+		dbAdapter.removeAllDomains();
+		closeDbAdapter();
+
+		int smallSize = 2 * DbAdapter.MAX_INDEXED_TRUSTED;
+		int largeSize = 100000;
+		fillTrustedDomains(0, smallSize);
+		long smallNanos = measureDomainLookups(smallSize);
+		fillTrustedDomains(smallSize, largeSize);
+		long largeNanos = measureDomainLookups(largeSize);
+
+		Log.i(LOG_TAG, "Domain lookup with " + smallSize + " rows: "
+				+ smallNanos / 1000 + "us, with " + largeSize + " rows: "
+				+ largeNanos / 1000 + "us");
+		assertTrue(isDomainLookupIndexed());
+
+		openDbAdapter();
+		dbAdapter.removeAllDomains();
+		closeDbAdapter();
+	}
+
+	private void fillTrustedDomains(int from, int to) {
+		DatabaseHelper dbHelper = new DatabaseHelper(getContext());
+		SQLiteDatabase database = dbHelper.getWritableDatabase();
+		SQLiteStatement insert = database
+				.compileStatement("INSERT OR IGNORE INTO trustedDomain (domain) VALUES (?)");
+		database.beginTransaction();
+		try {
+			for (int i = from; i < to; i++) {
+				insert.bindString(1, "domain" + i + ".ch");
+				insert.executeInsert();
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			insert.close();
+			dbHelper.close();
+		}
+	}
+
+	private boolean isDomainLookupIndexed() {
+		DatabaseHelper dbHelper = new DatabaseHelper(getContext());
+		SQLiteDatabase database = dbHelper.getReadableDatabase();
+		Cursor plan = database.rawQuery("EXPLAIN QUERY PLAN SELECT 1 FROM "
+				+ "trustedDomain WHERE domain = ?", new String[] { "a.ch" });
+		try {
+			while (plan.moveToNext()) {
+				// The detail is the last column in all SQLite versions.
+				String detail = plan.getString(plan.getColumnCount() - 1);
+				if (detail != null && detail.contains("INDEX")) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			plan.close();
+			dbHelper.close();
+		}
+	}
+
+	/**
+	 * @return The average nanoseconds per pair of domain and combined lookup.
+	 */
+	private long measureDomainLookups(int tableSize) {
+		openDbAdapter();
+		try {
+			Random random = new Random(42);
+			long start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; i++) {
+				// Half of the lookups miss
+				int domain = random.nextInt(2 * tableSize);
+				assertEquals(domain < tableSize, dbAdapter
+						.isDomainTrusted("domain" + domain + ".ch"));
+				assertEquals(domain < tableSize, dbAdapter.isTrusted(Uri
+						.parse("http://domain" + domain + ".ch/")));
+			}
+			return (System.nanoTime() - start) / LOOKUPS;
+		} finally {
+			closeDbAdapter();
+		}
+	}
+
+	public void testBulkAddAndRemove() {
+		openDbAdapter();
+
+		List<String> domains = Arrays.asList("bulk1.ch", "bulk2.ch");
+		List<Uri> uris = Arrays.asList(Uri.parse("http://bulk.ch/1"),
+				Uri.parse("http://bulk.ch/2"));
+		dbAdapter.addDomains(domains);
+		dbAdapter.addUris(uris);
+		assertTrue(dbAdapter.isDomainTrusted("bulk2.ch"));
+		assertTrue(dbAdapter.isUriTrusted(Uri.parse("http://bulk.ch/2")));
+
+		assertEquals(2, dbAdapter.removeDomains(domains));
+		assertEquals(2, dbAdapter.removeUris(uris));
+		assertFalse(dbAdapter.isDomainTrusted("bulk1.ch"));
+		assertFalse(dbAdapter.isUriTrusted(Uri.parse("http://bulk.ch/1")));
+
+		closeDbAdapter();
+	}
+
+	public void testBulkAddIsAtomic() {
+		openDbAdapter();
+
+		try {
+			dbAdapter.addDomains(Arrays.asList("atomic.ch", null));
+			fail("expected exception not catched.");
+		} catch (NullPointerException e) {
+			// expected
+		}
+		assertFalse(dbAdapter.isDomainTrusted("atomic.ch"));
+
+		closeDbAdapter();
+	}
+
+	public void testImportExport() throws Exception {
+		openDbAdapter();
+		dbAdapter.removeAllTrusted();
+
+		String trustList = "# Trusted\ndomain export.ch\n\n"
+				+ "uri http://export.ch/path\n";
+		assertEquals(2, dbAdapter.importTrusted(new StringReader(trustList)));
+		assertTrue(dbAdapter.isDomainTrusted("export.ch"));
+		assertTrue(dbAdapter.isUriTrusted(Uri.parse("http://export.ch/path")));
+
+		StringWriter exported = new StringWriter();
+		assertEquals(2, dbAdapter.exportTrusted(exported));
+		assertEquals("domain export.ch\nuri http://export.ch/path\n",
+				exported.toString());
+
+		dbAdapter.removeAllTrusted();
+		assertFalse(dbAdapter.isDomainTrusted("export.ch"));
+		closeDbAdapter();
+	}
+
+	public void testMalformedImportIsRolledBack() throws Exception {
+		openDbAdapter();
+
+		try {
+			dbAdapter.importTrusted(new StringReader(
+					"domain rollback.ch\nfoo bar\n"));
+			fail("expected exception not catched.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertFalse(dbAdapter.isDomainTrusted("rollback.ch"));
+
+		closeDbAdapter();
+	}
+
+	public void testLargeImport() throws Exception {
+		int entries = 50000;
+		StringBuilder trustList = new StringBuilder();
+		for (int i = 0; i < entries; i++) {
+			trustList.append("domain import").append(i).append(".ch\n");
+		}
+		openDbAdapter();
+		dbAdapter.removeAllTrusted();
+
+		long start = System.nanoTime();
+		assertEquals(entries, dbAdapter.importTrusted(new StringReader(
+				trustList.toString())));
+		long millis = (System.nanoTime() - start) / 1000000;
+		Log.i(LOG_TAG, "Imported " + entries + " domains in " + millis + "ms");
+
+		assertTrue(dbAdapter.isDomainTrusted("import" + (entries - 1) + ".ch"));
+		List<String> removed = new ArrayList<String>();
+		for (int i = 0; i < entries; i += 2) {
+			removed.add("import" + i + ".ch");
+		}
+		assertEquals(removed.size(), dbAdapter.removeDomains(removed));
+		assertFalse(dbAdapter.isDomainTrusted("import0.ch"));
+		assertTrue(dbAdapter.isDomainTrusted("import1.ch"));
+
+		dbAdapter.removeAllTrusted();
+		dbAdapter.compact();
+		closeDbAdapter();
+	}
+
+	public void testAddResolvedUri() {
+		openDbAdapter();
+
+		Uri shortUri = Uri.parse("http://bit.ly/abc");
+		Uri finalUri = Uri.parse("http://mydomain.ch/resolved");
+		dbAdapter.addResolvedUri(shortUri, finalUri, 301,
+				System.currentTimeMillis() + 60000);
+
+		assertEquals(finalUri, dbAdapter.getResolvedUri(shortUri));
+
+		dbAdapter.removeAllResolvedUris();
+		assertNull(dbAdapter.getResolvedUri(shortUri));
+
+		closeDbAdapter();
+	}
+
+	public void testResolvedUriSurvivesReopen() {
+		openDbAdapter();
+
+		Uri shortUri = Uri.parse("http://bit.ly/reopen");
+		Uri finalUri = Uri.parse("http://mydomain.ch/reopen");
+		dbAdapter.addResolvedUri(shortUri, finalUri, 301,
+				System.currentTimeMillis() + 60000);
+		closeDbAdapter();
+
+		openDbAdapter();
+		assertEquals(finalUri, dbAdapter.getResolvedUri(shortUri));
+		dbAdapter.removeAllResolvedUris();
+
+		closeDbAdapter();
+	}
+
+	public void testExpiredResolvedUri() {
+		openDbAdapter();
+
+		Uri shortUri = Uri.parse("http://bit.ly/expired");
+		dbAdapter.addResolvedUri(shortUri, Uri.parse("http://mydomain.ch"),
+				302, System.currentTimeMillis() - 1);
+
+		assertNull(dbAdapter.getResolvedUri(shortUri));
+
+		closeDbAdapter();
+	}
+
+	public void testResolvedUrisAreCapped() throws InterruptedException {
+		openDbAdapter();
+		dbAdapter.removeAllResolvedUris();
+
+		long expiresAt = System.currentTimeMillis() + 60000;
+		Uri firstUri = Uri.parse("http://bit.ly/0");
+		Uri recentlyUsedUri = Uri.parse("http://bit.ly/1");
+		dbAdapter.addResolvedUri(firstUri, Uri.parse("http://mydomain.ch/0"),
+				301, expiresAt);
+		dbAdapter.addResolvedUri(recentlyUsedUri,
+				Uri.parse("http://mydomain.ch/1"), 301, expiresAt);
+		// Distinct access times make the least recently used order stable.
+		Thread.sleep(10);
+		assertNotNull(dbAdapter.getResolvedUri(recentlyUsedUri));
+		Thread.sleep(10);
+		for (int i = 2; i < DbAdapter.MAX_RESOLVED_URIS + 10; i++) {
+			dbAdapter.addResolvedUri(Uri.parse("http://bit.ly/" + i),
+					Uri.parse("http://mydomain.ch/" + i), 301, expiresAt);
+		}
+
+		assertEquals(DbAdapter.MAX_RESOLVED_URIS,
+				dbAdapter.getResolvedUriCount());
+		assertNull(dbAdapter.getResolvedUri(firstUri));
+		assertNotNull(dbAdapter.getResolvedUri(recentlyUsedUri));
+
+		dbAdapter.removeAllResolvedUris();
+		closeDbAdapter();
+	}
+
 	private void closeDbAdapter() {
 		dbAdapter.close();
 	}
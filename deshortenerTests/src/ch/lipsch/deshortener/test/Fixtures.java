@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.lipsch.deshortener.test.StubHttpServer.Response;
+
+/**
+ * Recorded responses of real shorteners which are replayed by a
+ * {@link StubHttpServer} acting as proxy. Only status and headers are kept,
+ * the bodies of redirects are of no interest to the deshortener.
+ * <p>
+ * The text format holds one response per block, blocks are separated by
+ * empty lines and lines starting with <code>#</code> are comments:
+ *
+ * <pre>
+ * http://bit.ly/CUjV 301
+ * Location: http://maps.google.com/maps
+ * </pre>
+ *
+ * To record new fixtures pass an empty instance to
+ * {@link StubHttpServer#setRecorder(Fixtures)}, run the lookups and
+ * {@link #write(Writer) write} the fixtures to the files directory of the
+ * test application from where they can be pulled with adb. This
+ * class is thread-safe.
+ */
+public final class Fixtures {
+
+	/** Headers which describe the recorded connection, not the response. */
+	private static final String[] SKIPPED_HEADERS = { "Connection",
+			"Content-Length", "Keep-Alive", "Transfer-Encoding", "Set-Cookie" };
+
+	private final Map<String, Response> responses = new LinkedHashMap<String, Response>();
+
+	/**
+	 * Loads fixtures bundled with the tests.
+	 *
+	 * @param name
+	 *            The name of the resource relative to this class.
+	 * @throws IllegalArgumentException
+	 *             If there is no such resource or it is malformed.
+	 */
+	public static Fixtures load(String name) throws IOException {
+		InputStream in = Fixtures.class.getResourceAsStream(name);
+		if (in == null) {
+			throw new IllegalArgumentException("No fixtures named " + name);
+		}
+		try {
+			Fixtures fixtures = new Fixtures();
+			fixtures.read(new InputStreamReader(in, "UTF-8"));
+			return fixtures;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds the responses in the text format.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the text is malformed.
+	 */
+	public synchronized void read(Reader reader) throws IOException {
+		BufferedReader in = new BufferedReader(reader);
+		Response response = null;
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.startsWith("#")) {
+				continue;
+			}
+			if (line.length() == 0) {
+				response = null;
+			} else if (response == null) {
+				String[] parts = line.split(" +");
+				if (parts.length != 2) {
+					throw new IllegalArgumentException("Malformed fixture: "
+							+ line);
+				}
+				response = new Response(Integer.parseInt(parts[1]), null);
+				responses.put(parts[0], response);
+			} else {
+				int separator = line.indexOf(':');
+				if (separator < 1) {
+					throw new IllegalArgumentException("Malformed header: "
+							+ line);
+				}
+				response.header(line.substring(0, separator).trim(), line
+						.substring(separator + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * Writes all responses in the text format.
+	 */
+	public synchronized void write(Writer out) throws IOException {
+		for (Map.Entry<String, Response> entry : responses.entrySet()) {
+			Response response = entry.getValue();
+			out.write(entry.getKey() + " " + response.getStatus() + "\n");
+			for (Map.Entry<String, String> header : response.getHeaders()
+					.entrySet()) {
+				out.write(header.getKey() + ": " + header.getValue() + "\n");
+			}
+			out.write("\n");
+		}
+		out.flush();
+	}
+
+	public synchronized int size() {
+		return responses.size();
+	}
+
+	synchronized void addTo(StubHttpServer server) {
+		for (Map.Entry<String, Response> entry : responses.entrySet()) {
+			server.addResponse(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Fetches the uri from the real server without following redirects and
+	 * records the response.
+	 */
+	Response record(String method, String uri) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(uri)
+				.openConnection();
+		try {
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestMethod(method);
+			Response response = new Response(connection.getResponseCode(),
+					null);
+			for (Map.Entry<String, List<String>> header : connection
+					.getHeaderFields().entrySet()) {
+				if (header.getKey() != null && !isSkipped(header.getKey())
+						&& !header.getValue().isEmpty()) {
+					response.header(header.getKey(), header.getValue().get(0));
+				}
+			}
+			synchronized (this) {
+				responses.put(uri, response);
+			}
+			return response;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static boolean isSkipped(String header) {
+		for (String skipped : SKIPPED_HEADERS) {
+			if (skipped.equalsIgnoreCase(header)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
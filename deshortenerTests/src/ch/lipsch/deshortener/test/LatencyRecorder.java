@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener.test;
+
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Records the latencies of benchmarked operations and reports throughput and
+ * percentiles. This class is not thread-safe.
+ */
+public final class LatencyRecorder {
+
+	private long[] latencies;
+	private int count = 0;
+
+	public LatencyRecorder(int expectedOperations) {
+		latencies = new long[Math.max(1, expectedOperations)];
+	}
+
+	/**
+	 * Records the latency of one operation.
+	 */
+	public void record(long nanos) {
+		if (count == latencies.length) {
+			long[] grown = new long[2 * latencies.length];
+			System.arraycopy(latencies, 0, grown, 0, count);
+			latencies = grown;
+		}
+		latencies[count++] = nanos;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return The latency in nanoseconds below which the given percentage of
+	 *         operations finished.
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = new long[count];
+		System.arraycopy(latencies, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * @return The operations per second if run one after another.
+	 */
+	public double getThroughput() {
+		long nanos = 0;
+		for (int i = 0; i < count; i++) {
+			nanos += latencies[i];
+		}
+		return nanos == 0 ? 0 : count / (nanos / 1e9);
+	}
+
+	/**
+	 * Logs throughput and percentiles under the given name.
+	 */
+	public void report(String logTag, String name) {
+		Log.i(logTag, name + ": " + Math.round(getThroughput()) + " ops/s, p50 "
+				+ micros(getPercentile(50)) + "us, p90 "
+				+ micros(getPercentile(90)) + "us, p99 "
+				+ micros(getPercentile(99)) + "us, max "
+				+ micros(getPercentile(100)) + "us (" + count + " ops)");
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+}
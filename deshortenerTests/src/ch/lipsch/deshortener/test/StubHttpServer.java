@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2011 Erwin Betschart
+ *
+ * This file is part of Deshortener.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.lipsch.deshortener.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.net.Uri;
+
+/**
+ * A minimal in-process HTTP/1.1 server which answers with canned responses.
+ * Used to test and benchmark the deshortener without depending on real
+ * shorteners. Connections are kept alive so that connection reuse can be
+ * observed.
+ * <p>
+ * The server also answers requests sent to it as an HTTP proxy, responses
+ * for those are registered under the absolute uri. Tunnels (CONNECT) are
+ * refused. Slow networks are simulated by adding latency, delaying the
+ * response headers and dropping requests without an answer.
+ */
+public final class StubHttpServer {
+
+	/**
+	 * A canned response.
+	 */
+	public static final class Response {
+		private final int status;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private final byte[] body;
+
+		public Response(int status, String body) {
+			this.status = status;
+			this.body = body == null ? new byte[0] : body.getBytes();
+		}
+
+		public Response header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		int getStatus() {
+			return status;
+		}
+
+		Map<String, String> getHeaders() {
+			return headers;
+		}
+	}
+
+	private final Map<String, Response> responses = new ConcurrentHashMap<String, Response>();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private volatile long connectLatencyMillis = 0;
+	private volatile long responseLatencyMillis = 0;
+	private volatile long headerDelayMillis = 0;
+	private final AtomicInteger requestsToDrop = new AtomicInteger();
+	private final AtomicInteger requestsToThrottle = new AtomicInteger();
+	private volatile String retryAfter = null;
+	private volatile Fixtures recorder = null;
+	private volatile boolean running = false;
+	private ServerSocket serverSocket = null;
+
+	/**
+	 * Starts the server on a free port of the loopback interface.
+	 */
+	public StubHttpServer start() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+		running = true;
+		Thread acceptor = new Thread("StubHttpServer acceptor") {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return this;
+	}
+
+	public void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Ignore, we are shutting down.
+		}
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Delivers the absolute uri pointing to the given path on this server.
+	 */
+	public Uri uri(String path) {
+		return Uri.parse("http://127.0.0.1:" + getPort() + path);
+	}
+
+	public void addResponse(String path, Response response) {
+		responses.put(path, response);
+	}
+
+	/**
+	 * Adds a response which is only delivered for the given request method.
+	 * Takes precedence over responses added by
+	 * {@link #addResponse(String, Response)}.
+	 */
+	public void addResponse(String method, String path, Response response) {
+		responses.put(method + " " + path, response);
+	}
+
+	/**
+	 * Adds all responses of the fixtures.
+	 */
+	public void addFixtures(Fixtures fixtures) {
+		fixtures.addTo(this);
+	}
+
+	/**
+	 * Fetches requests sent to the server as a proxy which have no canned
+	 * response from the real server and records the responses into the
+	 * fixtures.
+	 *
+	 * @param recorder
+	 *            The fixtures to record into or <code>null</code> to stop
+	 *            recording.
+	 */
+	public void setRecorder(Fixtures recorder) {
+		this.recorder = recorder;
+	}
+
+	public void addRedirect(String path, int status, String location) {
+		addResponse(path, new Response(status, null).header("Location",
+				location));
+	}
+
+	public void addPage(String path, String body) {
+		addResponse(path, new Response(200, body).header("Content-Type",
+				"text/html"));
+	}
+
+	/**
+	 * Delay added once per new connection. Simulates the round trips of the
+	 * TCP (and TLS) handshake which are not noticeable on the loopback device.
+	 */
+	public void setConnectLatencyMillis(long connectLatencyMillis) {
+		this.connectLatencyMillis = connectLatencyMillis;
+	}
+
+	/** Delay added before every response. */
+	public void setResponseLatencyMillis(long responseLatencyMillis) {
+		this.responseLatencyMillis = responseLatencyMillis;
+	}
+
+	/**
+	 * Delay between the status line and the headers of every response.
+	 * Simulates a server which accepts requests but answers slowly.
+	 */
+	public void setHeaderDelayMillis(long headerDelayMillis) {
+		this.headerDelayMillis = headerDelayMillis;
+	}
+
+	/**
+	 * Closes the connection instead of answering the next requests, like a
+	 * lost response would look like to the client.
+	 *
+	 * @param count
+	 *            The number of requests to drop.
+	 */
+	public void dropNextRequests(int count) {
+		requestsToDrop.set(count);
+	}
+
+	/**
+	 * Answers the next requests with 429 Too Many Requests, like a shortener
+	 * which throttles its clients.
+	 *
+	 * @param count
+	 *            The number of requests to throttle.
+	 * @param retryAfter
+	 *            The value of the Retry-After header or <code>null</code> to
+	 *            send none.
+	 */
+	public void throttleNextRequests(int count, String retryAfter) {
+		this.retryAfter = retryAfter;
+		requestsToThrottle.set(count);
+	}
+
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public void resetCounters() {
+		connectionCount.set(0);
+		requestCount.set(0);
+		bytesWritten.set(0);
+	}
+
+	private void acceptConnections() {
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				connectionCount.incrementAndGet();
+				Thread handler = new Thread("StubHttpServer connection") {
+					@Override
+					public void run() {
+						serveConnection(socket);
+					}
+				};
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				// Server socket was closed.
+			}
+		}
+	}
+
+	private void serveConnection(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			sleep(connectLatencyMillis);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "ISO-8859-1"));
+			OutputStream out = socket.getOutputStream();
+			String requestLine;
+			while (running && (requestLine = in.readLine()) != null) {
+				// Skip the request headers, the stub does not need them.
+				String headerLine;
+				while ((headerLine = in.readLine()) != null
+						&& headerLine.length() > 0) {
+					// Nothing to do
+				}
+				requestCount.incrementAndGet();
+				String[] parts = requestLine.split(" ");
+				String method = parts[0];
+				String target = parts.length > 1 ? parts[1] : "/";
+				if (take(requestsToDrop)) {
+					break;
+				}
+				sleep(responseLatencyMillis);
+				if ("CONNECT".equals(method)) {
+					writeResponse(out, method, new Response(501,
+							"Tunnels are not supported"));
+					break;
+				}
+				if (take(requestsToThrottle)) {
+					Response throttled = new Response(429, "Too Many Requests");
+					String currentRetryAfter = retryAfter;
+					if (currentRetryAfter != null) {
+						throttled.header("Retry-After", currentRetryAfter);
+					}
+					writeResponse(out, method, throttled);
+					continue;
+				}
+				writeResponse(out, method, lookup(method, target));
+			}
+		} catch (IOException e) {
+			// Client went away.
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private static boolean take(AtomicInteger requests) {
+		int remaining;
+		do {
+			remaining = requests.get();
+			if (remaining <= 0) {
+				return false;
+			}
+		} while (!requests.compareAndSet(remaining, remaining - 1));
+		return true;
+	}
+
+	private Response lookup(String method, String target) throws IOException {
+		Response response = responses.get(method + " " + target);
+		if (response == null) {
+			response = responses.get(target);
+		}
+		Fixtures currentRecorder = recorder;
+		if (response == null && currentRecorder != null
+				&& target.startsWith("http")) {
+			response = currentRecorder.record(method, target);
+			addResponse(target, response);
+		}
+		if (response == null) {
+			response = new Response(404, "Not found");
+		}
+		return response;
+	}
+
+	private void writeResponse(OutputStream out, String method,
+			Response response) throws IOException {
+		String statusLine = "HTTP/1.1 " + response.status + " Stub\r\n";
+		if (headerDelayMillis > 0) {
+			byte[] statusBytes = statusLine.getBytes("ISO-8859-1");
+			out.write(statusBytes);
+			out.flush();
+			bytesWritten.addAndGet(statusBytes.length);
+			sleep(headerDelayMillis);
+			statusLine = "";
+		}
+		StringBuilder head = new StringBuilder(statusLine);
+		for (Map.Entry<String, String> header : response.headers.entrySet()) {
+			head.append(header.getKey()).append(": ")
+					.append(header.getValue()).append("\r\n");
+		}
+		head.append("Content-Length: ").append(response.body.length)
+				.append("\r\n\r\n");
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		message.write(head.toString().getBytes("ISO-8859-1"));
+		if (!"HEAD".equals(method)) {
+			message.write(response.body);
+		}
+		message.writeTo(out);
+		out.flush();
+		bytesWritten.addAndGet(message.size());
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}